@@ -1,11 +1,33 @@
 package nachos.threads;
 import nachos.machine.*;
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.Random;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a heap ordered by wake time, or, if
+ * <tt>Alarm.timingWheel</tt> is set, in a hierarchical timing wheel, which
+ * is cheaper when very many threads sleep at once.
+ *
+ * <p>
+ * If <tt>Alarm.tickless</tt> is set, the alarm doesn't wait for the timer to
+ * wake sleepers. It keeps track of the earliest wake time and programs a
+ * one-shot interrupt for it, re-armed whenever an earlier sleeper arrives or
+ * the earliest one is woken, so a sleeper is woken at the first interrupt
+ * the machine delivers after its time rather than at the next timer
+ * interrupt. The earliest wake time is also checked whenever the kernel
+ * switches threads. A one-shot interrupt can't be cancelled, so one
+ * programmed for a sleeper that has since gone just finds nobody due.
+ *
+ * <p>
+ * The machine's periodic timer can't be turned off, so its interrupt still
+ * arrives about every 500 ticks in tickless mode. It does nothing unless a
+ * sleeper is due, and only preempts the current thread if another thread
+ * is ready to run.
  */
 public class Alarm {
     /**
@@ -16,6 +38,13 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
+	tickless = Config.getBoolean("Alarm.tickless", false);
+
+	if (Config.getBoolean("Alarm.timingWheel", false))
+	    sleepers = new TimingWheel(Machine.timer().getTime());
+	else
+	    sleepers = new SleeperHeap();
+
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
@@ -23,30 +52,100 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Wakes every
+     * sleeping thread whose time has come, then causes the current thread to
+     * yield, forcing a context switch if there is another thread that should
+     * be run.
+     *
+     * <p>
+     * Only the threads actually woken are touched: the cost is O(k log n)
+     * for k threads woken out of n sleeping with the heap, and amortized
+     * O(k) with the timing wheel.
      */
     public void timerInterrupt() {
-        Machine.interrupt().disable();	
+	wakeSleepers();
+
+	if (tickless && !KThread.hasReadyThreads())
+	    return;
+
+	// a thread just woken may have an earlier deadline or a higher priority
+	ThreadedKernel.scheduler.threadPreempted(KThread.currentThread());
+	KThread.yield();
+    }
+
+    /**
+     * Called by <tt>KThread</tt>, with interrupts disabled, just before it
+     * chooses the next thread to run. In tickless mode, wakes every sleeper
+     * whose time has come, so that it can be chosen right away.
+     */
+    void threadSwitch() {
+	if (tickless)
+	    wakeSleepers();
+    }
 
-        //inspect the list
-    	if(!list.isEmpty()){
-    		Enumeration wakeTimes = list.keys();
-    		Enumeration threadsToWake = list.elements();
+    /**
+     * The handler of the one-shot interrupt programmed for <i>time</i>.
+     * Wakes the sleepers that are due, and preempts the current thread if
+     * that made another thread ready.
+     */
+    private void wakeInterrupt(long time) {
+	if (time != armedTime)
+	    return;
+	armedTime = Long.MAX_VALUE;
 
-    		while(threadsToWake.hasMoreElements()){
-    			Long wakeUpTime = (Long)wakeTimes.nextElement();
-    			KThread thread = (KThread)threadsToWake.nextElement();
+	// the sleeper this was programmed for may already have been woken at a
+	// thread switch, so the next one may not be due yet
+	wakeSleepers();
+	arm();
+
+	if (KThread.hasReadyThreads()) {
+	    ThreadedKernel.scheduler.threadPreempted(KThread.currentThread());
+	    KThread.yield();
+	}
+    }
 
-                //any thread that has wakeUpTime < currentTime, you need to wake up
-    			if(wakeUpTime < Machine.timer().getTime()){
-    				thread.ready();
-    				list.remove(wakeUpTime);
-    			}
-    		}
-    		Machine.interrupt().enable();
-    	}
+    /**
+     * In tickless mode, program a one-shot interrupt for
+     * <tt>nextWakeTime</tt>, unless one is already programmed for that
+     * time or earlier.
+     */
+    private void arm() {
+	if (!tickless || nextWakeTime >= armedTime)
+	    return;
+
+	final long time = nextWakeTime;
+	armedTime = time;
+	Machine.interrupt().schedule(Math.max(1, time -
+					      Machine.timer().getTime()),
+				     "alarm", new Runnable() {
+		public void run() { wakeInterrupt(time); }
+	    });
+    }
+
+    /**
+     * Wake every sleeping thread whose time has come. Costs a single
+     * comparison if none has.
+     */
+    private void wakeSleepers() {
+	long currentTime = Machine.timer().getTime();
+	if (currentTime < nextWakeTime)
+	    return;
+
+	Sleeper sleeper;
+	while ((sleeper = sleepers.pollExpired(currentTime)) != null) {
+	    sleeper.pending = false;
+
+	    // a thread that is also waiting on a queue times out only if it
+	    // is still there; otherwise it has already been woken
+	    if (sleeper.waitQueue == null ||
+		sleeper.waitQueue.remove(sleeper.thread)) {
+		sleeper.timedOut = true;
+		sleeper.thread.ready();
+	    }
+	}
+
+	nextWakeTime = sleepers.nextWakeTime();
+	arm();
     }
 
     /**
@@ -63,22 +162,583 @@ public class Alarm {
      *
      * @see	nachos.machine.Timer#getTime()
      */
-    public void waitUntil(long x) { 
-    boolean status = Machine.interrupt().disable();	
+    public void waitUntil(long x) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	sleep(x, null);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Put the current thread to sleep until another thread takes it off
+     * <i>waitQueue</i>, or until at least <i>x</i> ticks have passed,
+     * whichever comes first. The current thread must just have been added to
+     * <i>waitQueue</i> with <tt>waitForAccess()</tt>. If the time runs out,
+     * it is removed from <i>waitQueue</i>, which withdraws any priority it
+     * was donating through the queue. Must be called with interrupts
+     * disabled.
+     *
+     * @param	x		the maximum number of clock ticks to wait.
+     * @param	waitQueue	the queue the current thread is waiting on.
+     * @return	<tt>true</tt> if the thread was taken off the queue,
+     *		<tt>false</tt> if it timed out.
+     */
+    public boolean waitUntil(long x, ThreadQueue waitQueue) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(waitQueue != null);
+
+	return sleep(x, waitQueue);
+    }
+
+    private boolean sleep(long x, ThreadQueue waitQueue) {
+	long wakeTime = Machine.timer().getTime() + x;
+	Sleeper sleeper = new Sleeper(KThread.currentThread(), wakeTime,
+				      sequence++);
+	sleeper.waitQueue = waitQueue;
+	sleeper.pending = true;
+	sleepers.add(sleeper);
+	if (wakeTime < nextWakeTime) {
+	    nextWakeTime = wakeTime;
+	    arm();
+	}
+
+	KThread.sleep();
+
+	// woken through the queue before the time ran out
+	if (sleeper.pending)
+	    sleepers.remove(sleeper);
+
+	return !sleeper.timedOut;
+    }
+
+    /**
+     * Test that timed waits give up cleanly. Each synchronization primitive
+     * is waited on until the time runs out, and then used again, to check
+     * that the thread that gave up left the wait queue, stopped donating its
+     * priority, and doesn't take a wakeup that came after it gave up.
+     */
+    public static void selfTest() {
+	final Lock lock = new Lock();
+	KThread current = KThread.currentThread();
+
+	// a thread that gives up on a lock stops donating to the holder
+	KThread waiter = new KThread(new Runnable() {
+		public void run() {
+		    Lib.assertTrue(!lock.tryAcquire(1000));
+		}
+	    }).setName("timed acquire");
+
+	boolean donates = (ThreadedKernel.scheduler instanceof PriorityScheduler);
+	boolean intStatus = Machine.interrupt().disable();
+	int priority = ThreadedKernel.scheduler.getEffectivePriority(current);
+	if (donates) {
+	    ThreadedKernel.scheduler.setPriority(waiter,
+		ThreadedKernel.scheduler.getPriority(current) + 1);
+	}
+	Machine.interrupt().restore(intStatus);
+
+	lock.acquire();
+	waiter.fork();
+	ThreadedKernel.alarm.waitUntil(100);
+
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(!donates ||
+		       ThreadedKernel.scheduler.getEffectivePriority(current) >
+		       priority);
+	Machine.interrupt().restore(intStatus);
+
+	ThreadedKernel.alarm.waitUntil(2000);
+
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(current) ==
+		       priority);
+	Machine.interrupt().restore(intStatus);
+
+	// the lock isn't handed to the thread that gave up
+	lock.release();
+	Lib.assertTrue(lock.tryAcquire(0));
+	lock.release();
+	waiter.join();
+
+	// a V() after a timed P() gave up is left for the next P()
+	Semaphore semaphore = new Semaphore(0);
+	Lib.assertTrue(!semaphore.tryP(1, 1000));
+	semaphore.V();
+	Lib.assertTrue(semaphore.tryP(1));
+
+	// a wake() that comes after the time ran out, while the sleeper waits
+	// for the lock, doesn't cut its next sleep short
+	final Condition condition = new Condition(lock);
+	final Condition2 condition2 = new Condition2(lock);
+	for (int i=0; i<2; i++) {
+	    final boolean useCondition2 = (i == 1);
+
+	    KThread sleeper = new KThread(new Runnable() {
+		    public void run() {
+			lock.acquire();
+			sleepFor(1000);
+			long start = Machine.timer().getTime();
+			Lib.assertTrue(!sleepFor(1000));
+			Lib.assertTrue(Machine.timer().getTime() - start >= 1000);
+			lock.release();
+		    }
+
+		    private boolean sleepFor(long ticks) {
+			if (useCondition2)
+			    return condition2.sleepFor(ticks);
+			else
+			    return condition.sleepFor(ticks);
+		    }
+		}).setName("timed sleep");
+
+	    sleeper.fork();
+	    ThreadedKernel.alarm.waitUntil(100);
+
+	    lock.acquire();
+	    ThreadedKernel.alarm.waitUntil(2000);
+	    if (useCondition2)
+		condition2.wake();
+	    else
+		condition.wake();
+	    lock.release();
+
+	    sleeper.join();
+	}
+
+	// an element added after a timed removeFirst() gave up stays in the
+	// list, and doesn't wake the next timed removeFirst()
+	SynchList list = new SynchList();
+	Object element = new Object();
+	Lib.assertTrue(list.removeFirst(1000) == null);
+	list.add(element);
+	Lib.assertTrue(list.removeFirst(0) == element);
+	long start = Machine.timer().getTime();
+	Lib.assertTrue(list.removeFirst(1000) == null);
+	Lib.assertTrue(Machine.timer().getTime() - start >= 1000);
+
+	// a speaker isn't paired with a listener that gave up
+	final Communicator communicator = new Communicator();
+	Lib.assertTrue(communicator.listen(1000) == null);
+
+	KThread speaker = new KThread(new Runnable() {
+		public void run() {
+		    communicator.speak(42);
+		}
+	    }).setName("speaker");
+	speaker.fork();
+
+	Integer word = communicator.listen(10000);
+	Lib.assertTrue(word != null && word.intValue() == 42);
+	speaker.join();
+    }
+
+    /**
+     * Compare the heap and the timing wheel, without running any threads.
+     * For each number of sleepers and each distribution of timeouts, the
+     * sleepers are put to sleep, then time advances in steps of 500 ticks,
+     * as the timer does, and every sleeper that expires goes back to sleep
+     * with a new timeout, until each has been woken twice on average. A
+     * second run puts threads to sleep and cancels them straight away.
+     */
+    public static void benchmark() {
+	int[] counts = { 1000, 10000, 100000 };
+	String[] distributions = { "short", "long", "mixed" };
+
+	for (int i=0; i<counts.length; i++) {
+	    for (int j=0; j<distributions.length; j++) {
+		System.out.println("Alarm: " + counts[i] + " sleepers, "
+				   + distributions[j] + " timeouts: heap "
+				   + benchmark(new SleeperHeap(), counts[i], j)
+				   + " ns/wakeup, wheel "
+				   + benchmark(new TimingWheel(0), counts[i], j)
+				   + " ns/wakeup");
+	    }
+
+	    System.out.println("Alarm: " + counts[i] + " sleepers, cancel: "
+			       + "heap "
+			       + benchmarkCancel(new SleeperHeap(), counts[i])
+			       + " ns/cancel, wheel "
+			       + benchmarkCancel(new TimingWheel(0), counts[i])
+			       + " ns/cancel");
+	}
+    }
+
+    private static long benchmark(SleeperQueue queue, int count,
+				  int distribution) {
+	Random random = new Random(count);
+	long time = 0, wakeups = 0, sequence = 0;
+
+	long start = System.nanoTime();
+	for (int i=0; i<count; i++) {
+	    queue.add(new Sleeper(null, time + timeout(random, distribution),
+				  sequence++));
+	}
+	while (wakeups < 2L*count) {
+	    time += 500;
+
+	    Sleeper sleeper;
+	    while ((sleeper = queue.pollExpired(time)) != null) {
+		wakeups++;
+		sleeper.wakeTime = time + timeout(random, distribution);
+		sleeper.sequence = sequence++;
+		queue.add(sleeper);
+	    }
+	}
+	long elapsed = System.nanoTime() - start;
+
+	return elapsed / wakeups;
+    }
+
+    private static long benchmarkCancel(SleeperQueue queue, int count) {
+	Random random = new Random(count);
+	Sleeper[] sleeper = new Sleeper[count];
+	for (int i=0; i<count; i++) {
+	    sleeper[i] = new Sleeper(null, timeout(random, 2), i);
+	    queue.add(sleeper[i]);
+	}
+
+	// a cancelled sleeper is never added again, as in sleep()
+	long start = System.nanoTime();
+	for (int i=0; i<count; i++) {
+	    queue.remove(sleeper[i]);
+	    queue.add(new Sleeper(null, sleeper[i].wakeTime, count+i));
+	}
+	long elapsed = System.nanoTime() - start;
+
+	return elapsed / count;
+    }
+
+    /**
+     * Draw a timeout: up to 2,000 ticks for the short distribution, up to
+     * 1,000,000 for the long one, and a mix of nine short to one long.
+     */
+    private static long timeout(Random random, int distribution) {
+	if (distribution == 0 ||
+	    (distribution == 2 && random.nextInt(10) != 0))
+	    return 1 + random.nextInt(2000);
+	else
+	    return 1 + random.nextInt(1000000);
+    }
+
+    /**
+     * A sleeping thread and the time it should be woken. Threads with the
+     * same wake time are woken in the order they went to sleep.
+     */
+    private static class Sleeper implements Comparable<Sleeper> {
+	Sleeper(KThread thread, long wakeTime, long sequence) {
+	    this.thread = thread;
+	    this.wakeTime = wakeTime;
+	    this.sequence = sequence;
+	}
 
-    //The wakeup time should be the current time plus the time the threads need to sleep
-	long wakeUpTime = Machine.timer().getTime() + x;
+	public int compareTo(Sleeper other) {
+	    if (wakeTime != other.wakeTime)
+		return (wakeTime < other.wakeTime) ? -1 : 1;
+	    if (sequence != other.sequence)
+		return (sequence < other.sequence) ? -1 : 1;
+	    return 0;
+	}
 
-    //save wakeUpTime
-    KThread threadPointer = KThread.currentThread();
-	list.put(wakeUpTime, threadPointer);
+	KThread thread;
+	long wakeTime;
+	long sequence;
 
-    //put the thread to sleep
-	threadPointer.sleep();
-    
-	Machine.interrupt().restore(status);
+	/** The queue the thread is also waiting on, or <tt>null</tt>. */
+	ThreadQueue waitQueue = null;
+	/** <tt>true</tt> while this sleeper is in the alarm's queue. */
+	boolean pending = false;
+	/** <tt>true</tt> if the alarm, rather than the queue, woke the thread. */
+	boolean timedOut = false;
+	/** <tt>true</tt> if this sleeper was removed but is still in a heap. */
+	boolean cancelled = false;
+
+	/** Links in a timing wheel slot. */
+	Sleeper prev, next;
+	/** The timing wheel slot this sleeper is in, or -1. */
+	int level = -1, slot;
     }
-    
-    //list that saves at least a tuple <wakeUpTime, threadPointer>
-    Hashtable<Long,KThread> list = new Hashtable<Long,KThread>();
-}
\ No newline at end of file
+
+    /**
+     * A collection of sleepers that can be searched for those whose time has
+     * come.
+     */
+    private static abstract class SleeperQueue {
+	/** Add a sleeper. */
+	abstract void add(Sleeper sleeper);
+
+	/**
+	 * Remove a sleeper that has not expired yet. The sleeper must not be
+	 * added again.
+	 */
+	abstract void remove(Sleeper sleeper);
+
+	/**
+	 * Remove and return a sleeper whose wake time is no later than
+	 * <i>time</i>, or return <tt>null</tt> if there is none. Sleepers are
+	 * returned in order of wake time. <i>time</i> never decreases from one
+	 * call to the next.
+	 */
+	abstract Sleeper pollExpired(long time);
+
+	/**
+	 * Return a time no later than the earliest wake time of any sleeper,
+	 * at which <tt>pollExpired()</tt> should next be called, or
+	 * <tt>Long.MAX_VALUE</tt> if there are no sleepers.
+	 */
+	abstract long nextWakeTime();
+    }
+
+    /**
+     * Sleepers in a binary heap ordered by wake time. Adding a sleeper and
+     * removing the earliest cost O(log n).
+     *
+     * <p>
+     * Removing any other sleeper would mean searching the heap, so it is
+     * only marked cancelled and left where it is. Cancelled sleepers are
+     * dropped when they reach the top, and once they make up half the heap
+     * it is rebuilt without them, so a removal costs amortized O(log n) and
+     * the heap stays no more than twice the number of sleepers.
+     */
+    private static class SleeperHeap extends SleeperQueue {
+	void add(Sleeper sleeper) {
+	    heap.add(sleeper);
+	}
+
+	void remove(Sleeper sleeper) {
+	    Lib.assertTrue(!sleeper.cancelled);
+
+	    sleeper.cancelled = true;
+	    if (++cancelled > heap.size()/2)
+		rebuild();
+	}
+
+	Sleeper pollExpired(long time) {
+	    dropCancelled();
+
+	    if (heap.isEmpty() || heap.peek().wakeTime > time)
+		return null;
+
+	    return heap.poll();
+	}
+
+	long nextWakeTime() {
+	    dropCancelled();
+
+	    if (heap.isEmpty())
+		return Long.MAX_VALUE;
+
+	    return heap.peek().wakeTime;
+	}
+
+	/**
+	 * Remove the cancelled sleepers at the top of the heap.
+	 */
+	private void dropCancelled() {
+	    while (!heap.isEmpty() && heap.peek().cancelled) {
+		heap.poll();
+		cancelled--;
+	    }
+	}
+
+	/**
+	 * Rebuild the heap from the sleepers that are not cancelled, in linear
+	 * time.
+	 */
+	private void rebuild() {
+	    ArrayList<Sleeper> live = new ArrayList<Sleeper>(heap.size());
+	    for (Sleeper sleeper : heap) {
+		if (!sleeper.cancelled)
+		    live.add(sleeper);
+	    }
+
+	    heap = new PriorityQueue<Sleeper>(live);
+	    cancelled = 0;
+	}
+
+	private PriorityQueue<Sleeper> heap = new PriorityQueue<Sleeper>();
+	/** The number of cancelled sleepers still in the heap. */
+	private int cancelled = 0;
+    }
+
+    /**
+     * Sleepers in a hierarchical timing wheel.
+     *
+     * <p>
+     * The wheel has a level for every six bits of a wake time, and each
+     * level has 64 slots, one per value of its six bits. A sleeper is kept
+     * at the highest level at which its wake time differs from the wheel's
+     * current time, in the slot for its wake time's bits at that level; so
+     * level 0 holds sleepers due within the current 64 ticks, level 1 those
+     * due within the current 4,096, and so on. Each slot is a doubly linked
+     * list, so adding and removing a sleeper take constant time.
+     *
+     * <p>
+     * As time advances into the range of an occupied slot above level 0, the
+     * slot's sleepers are redistributed to lower levels. Each sleeper moves
+     * down at most once per level, so expiry costs amortized constant time
+     * per sleeper. Each level keeps a mask of its occupied slots, so the next
+     * slot that needs attention is found without looking at empty ones.
+     */
+    private static class TimingWheel extends SleeperQueue {
+	TimingWheel(long time) {
+	    this.time = time;
+	}
+
+	void add(Sleeper sleeper) {
+	    long wakeTime = Math.max(sleeper.wakeTime, time);
+	    int level = (63 - Long.numberOfLeadingZeros(wakeTime ^ time)) / 6;
+	    if (level < 0)
+		level = 0;
+	    int slot = (int) (wakeTime >>> (6*level)) & 63;
+
+	    Sleeper tail = tails[level][slot];
+	    sleeper.prev = tail;
+	    sleeper.next = null;
+	    if (tail == null)
+		heads[level][slot] = sleeper;
+	    else
+		tail.next = sleeper;
+	    tails[level][slot] = sleeper;
+
+	    sleeper.level = level;
+	    sleeper.slot = slot;
+	    occupied[level] |= 1L << slot;
+	}
+
+	void remove(Sleeper sleeper) {
+	    int level = sleeper.level, slot = sleeper.slot;
+	    Lib.assertTrue(level >= 0);
+
+	    if (sleeper.prev == null)
+		heads[level][slot] = sleeper.next;
+	    else
+		sleeper.prev.next = sleeper.next;
+	    if (sleeper.next == null)
+		tails[level][slot] = sleeper.prev;
+	    else
+		sleeper.next.prev = sleeper.prev;
+
+	    if (heads[level][slot] == null)
+		occupied[level] &= ~(1L << slot);
+
+	    sleeper.prev = sleeper.next = null;
+	    sleeper.level = -1;
+	}
+
+	Sleeper pollExpired(long time) {
+	    while (expired == null && advance(time))
+		;
+
+	    Sleeper sleeper = expired;
+	    if (sleeper != null) {
+		expired = sleeper.next;
+		sleeper.next = null;
+	    }
+	    return sleeper;
+	}
+
+	/**
+	 * The time at which the next slot needs attention. This is exact for a
+	 * level-0 slot, and the start of the slot's range for a slot at a
+	 * higher level, which is no later than any of its sleepers.
+	 */
+	long nextWakeTime() {
+	    return findNext();
+	}
+
+	/**
+	 * Move the wheel forward to the next slot that needs attention, if it
+	 * is no later than <i>limit</i>. A level-0 slot is due, and its
+	 * sleepers become expired; a slot at a higher level is redistributed.
+	 *
+	 * @return	<tt>true</tt> if there was such a slot.
+	 */
+	private boolean advance(long limit) {
+	    long next = findNext();
+	    if (next > limit) {
+		time = Math.max(time, limit);
+		return false;
+	    }
+
+	    time = next;
+
+	    int level = nextLevel, slot = nextSlot;
+	    Sleeper list = heads[level][slot];
+	    heads[level][slot] = tails[level][slot] = null;
+	    occupied[level] &= ~(1L << slot);
+
+	    if (level == 0) {
+		expired = list;
+		for (Sleeper s=list; s!=null; s=s.next)
+		    s.level = -1;
+	    }
+	    else {
+		while (list != null) {
+		    Sleeper sleeper = list;
+		    list = list.next;
+		    add(sleeper);
+		}
+	    }
+	    return true;
+	}
+
+	/**
+	 * Find the next slot that needs attention: the first occupied slot at
+	 * the lowest level that has one ahead of the current time. Leaves the
+	 * slot in <tt>nextLevel</tt> and <tt>nextSlot</tt>.
+	 *
+	 * @return	the time the slot needs attention, or
+	 *		<tt>Long.MAX_VALUE</tt> if the wheel is empty.
+	 */
+	private long findNext() {
+	    for (int level=0; level<levels; level++) {
+		int shift = 6*level;
+		int digit = (int) (time >>> shift) & 63;
+
+		// a slot at level 0 is due at its own tick; a slot above
+		// level 0 needs redistributing when its range begins
+		long candidates = occupied[level] &
+		    (level == 0 ? -1L << digit : (-1L << digit) << 1);
+		if (candidates == 0)
+		    continue;
+
+		nextLevel = level;
+		nextSlot = Long.numberOfTrailingZeros(candidates);
+
+		long blockMask = (shift+6 >= 64) ? -1L : (1L << (shift+6)) - 1;
+		return (time & ~blockMask) | ((long) nextSlot << shift);
+	    }
+
+	    return Long.MAX_VALUE;
+	}
+
+	/** Enough levels to cover every 64-bit time. */
+	private static final int levels = 11;
+
+	/** The current time of the wheel. */
+	private long time;
+	private Sleeper[][] heads = new Sleeper[levels][64];
+	private Sleeper[][] tails = new Sleeper[levels][64];
+	/** Bit <i>s</i> of <tt>occupied[l]</tt> is set if slot <i>s</i> of
+	 *  level <i>l</i> has sleepers. */
+	private long[] occupied = new long[levels];
+	/** Sleepers that are due but haven't been returned yet. */
+	private Sleeper expired = null;
+	/** The slot found by <tt>findNext()</tt>. */
+	private int nextLevel, nextSlot;
+    }
+
+    /** The sleeping threads. */
+    private SleeperQueue sleepers;
+    /** No sleeper is due before this time. */
+    private long nextWakeTime = Long.MAX_VALUE;
+    /**
+     * The time of the earliest one-shot interrupt that is still to come, or
+     * <tt>Long.MAX_VALUE</tt>.
+     */
+    private long armedTime = Long.MAX_VALUE;
+    private boolean tickless;
+    /** Breaks ties between sleepers with the same wake time. */
+    private long sequence = 0;
+}
@@ -0,0 +1,324 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that divides the CPU fairly, by virtual runtime.
+ *
+ * <p>
+ * Every thread has a weight, which is its priority, and accumulates
+ * <i>virtual runtime</i> while it runs: the ticks it spends on the CPU,
+ * measured with <tt>Machine.timer()</tt>, divided by its weight. The next
+ * thread to be dequeued is always the waiting thread with the least virtual
+ * runtime, so over time every runnable thread receives CPU time in
+ * proportion to its weight. Threads of equal weight are chosen FIFO when
+ * their virtual runtimes are equal.
+ *
+ * <p>
+ * A thread that has been blocked, or is new, enters a queue with at least
+ * the virtual runtime of the last thread that queue chose. It can't bank
+ * credit while it is away and then monopolize the CPU when it returns.
+ *
+ * <p>
+ * Weights are not donated, so the <tt>transferPriority</tt> flag of a queue
+ * is ignored.
+ */
+public class CFSScheduler extends Scheduler {
+    /**
+     * Allocate a new CFS scheduler.
+     */
+    public CFSScheduler() {
+    }
+
+    /**
+     * Allocate a new virtual-runtime thread queue.
+     *
+     * @param	transferPriority	ignored. Weights are not donated.
+     * @return	a new virtual-runtime thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).weight;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	ThreadState state = getThreadState(thread);
+	state.charge();
+	state.weight = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Return the virtual runtime of the specified thread, in units of
+     * <tt>1/vruntimeScale</tt> ticks at the default weight. Must be called
+     * with interrupts disabled.
+     *
+     * @param	thread	the thread to get the virtual runtime of.
+     * @return	the thread's virtual runtime.
+     */
+    public long getVruntime(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	state.charge();
+	return state.vruntime;
+    }
+
+    /**
+     * Start charging the specified thread for the CPU.
+     */
+    public void threadDispatched(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	state.running = true;
+	state.chargedUntil = Machine.timer().getTime();
+    }
+
+    /**
+     * Charge the specified thread for the CPU time it has used, and stop
+     * charging it.
+     */
+    public void threadDescheduled(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	state.charge();
+	state.running = false;
+    }
+
+    /**
+     * The default weight. A thread of this weight gains one tick of virtual
+     * runtime for every tick it runs.
+     */
+    public static final int priorityDefault = 1024;
+    /** The minimum weight. */
+    public static final int priorityMinimum = 1;
+    /** The maximum weight, 1024 times the default. */
+    public static final int priorityMaximum = 1 << 20;
+
+    /**
+     * The fixed-point scale of virtual runtime. It keeps the charge for a
+     * single tick at the maximum weight well above zero.
+     */
+    public static final long vruntimeScale = 1L << 16;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /** Source of tie-breaking tickets for threads entering a queue. */
+    private long waitSequence = 0;
+
+    /**
+     * Orders waiting threads by virtual runtime, then by arrival. Virtual
+     * runtimes are compared by their difference, so they may wrap around.
+     */
+    private static final Comparator<ThreadState> byVruntime =
+	new Comparator<ThreadState>() {
+	    public int compare(ThreadState a, ThreadState b) {
+		if (a.vruntime != b.vruntime)
+		    return (a.vruntime - b.vruntime < 0) ? -1 : 1;
+		if (a.arrival != b.arrival)
+		    return (a.arrival < b.arrival) ? -1 : 1;
+		return 0;
+	    }
+	};
+
+    /**
+     * A <tt>ThreadQueue</tt> that chooses the waiter with the least virtual
+     * runtime. The waiters are kept in a red-black tree, so adding a thread
+     * and taking the minimum both cost O(log n).
+     */
+    protected class FairQueue extends ThreadQueue {
+	FairQueue() {
+	}
+
+	/**
+	 * Add a thread to this queue. If it is the current thread, it is
+	 * giving up the CPU, so it is charged first and then no longer
+	 * charged; its place in the tree depends on its virtual runtime,
+	 * which must not change while it waits, even when the thread is
+	 * descheduled after joining the tree.
+	 *
+	 * @param	thread	the thread to add.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    state.charge();
+	    state.running = false;
+	    if (state.vruntime - minVruntime < 0)
+		state.vruntime = minVruntime;
+	    state.arrival = waitSequence++;
+
+	    waitQueue.add(state);
+	}
+
+	/**
+	 * Remove the waiting thread with the least virtual runtime.
+	 *
+	 * @return	the chosen thread, or <tt>null</tt> if the queue is
+	 *		empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = waitQueue.pollFirst();
+	    if (state == null)
+		return null;
+
+	    if (state.vruntime - minVruntime > 0)
+		minVruntime = state.vruntime;
+
+	    return state.thread;
+	}
+
+	/**
+	 * Remove a thread from the tree. Its virtual runtime hasn't changed
+	 * since it was added, so it is found in O(log n). If it is the
+	 * current thread, it gave up waiting before it went to sleep, so it
+	 * is charged again from now on.
+	 *
+	 * @param	thread	the thread to remove.
+	 * @return	<tt>true</tt> if the thread was in the queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (!waitQueue.remove(state))
+		return false;
+
+	    if (thread == KThread.currentThread()) {
+		state.running = true;
+		state.chargedUntil = Machine.timer().getTime();
+	    }
+	    return true;
+	}
+
+	/**
+	 * The specified thread has received access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Weights are not
+	 * donated, so there is nothing to do.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=waitQueue.iterator(); i.hasNext(); )
+		System.out.print(i.next().thread + " ");
+	}
+
+	private TreeSet<ThreadState> waitQueue =
+	    new TreeSet<ThreadState>(byVruntime);
+	/** The virtual runtime of the thread this queue chose most recently. */
+	private long minVruntime = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its weight, its virtual runtime, and
+     * when it was last charged if it is running.
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * If the associated thread is running, add the ticks it has run since
+	 * it was last charged to its virtual runtime.
+	 */
+	void charge() {
+	    if (!running)
+		return;
+
+	    long now = Machine.timer().getTime();
+	    vruntime += (now - chargedUntil) * (vruntimeScale * priorityDefault)
+		/ weight;
+	    chargedUntil = now;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The weight of the associated thread. */
+	protected int weight = priorityDefault;
+	/** The virtual runtime of the associated thread. */
+	protected long vruntime = 0;
+	/** <tt>true</tt> if the associated thread is on the CPU. */
+	protected boolean running = false;
+	/** The time up to which a running thread has been charged. */
+	protected long chargedUntil;
+	/** When this thread entered its queue; breaks ties. */
+	protected long arrival;
+    }
+}
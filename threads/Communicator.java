@@ -7,20 +7,44 @@ import nachos.machine.*;
  * and multiple threads can be waiting to <i>listen</i>. But there should never
  * be a time when both a speaker and a listener are waiting, because the two
  * threads can be paired off at this point.
+ *
+ * <p>
+ * Waiting speakers and listeners are kept in arrival order, each on its own
+ * wait node, which is allocated the first time the thread waits and reused
+ * after that. A thread that arrives to find a partner waiting pairs with it
+ * directly: the word is copied into the listener's node, or out of the
+ * speaker's, and the partner is made ready. Neither thread waits for
+ * anything else, so each side of an exchange blocks at most once, and any
+ * number of pairs can be exchanging words at the same time.
+ *
+ * <p>
+ * A communicator can instead be given a buffer of a fixed capacity. Words
+ * are then delivered in the order they were spoken, a speaker only waits
+ * while the buffer is full, and a listener only waits while it is empty, so
+ * a speaker and listener can each run for a while without switching to the
+ * other.
  */
 public class Communicator {
     /**
      * Allocate a new communicator.
      */
-	private Lock communicatorLock = new Lock();
-	private Condition speaker = new Condition(communicatorLock);
-	private Condition listener = new Condition(communicatorLock);
-	private Condition listenerStatus = new Condition(communicatorLock);
-	private int mail = 0; 
-	private int numOfListeners = 0; 
-	private boolean mailStatus = false;
-	
     public Communicator() {
+	this(0);
+    }
+
+    /**
+     * Allocate a new communicator with a buffer.
+     *
+     * @param	capacity	the number of words that can be spoken and not
+     *				yet heard, or <tt>0</tt> for a communicator
+     *				where every speaker waits for a listener.
+     */
+    public Communicator(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	this.capacity = capacity;
+	if (capacity > 0)
+	    buffer = new int[capacity];
     }
 
     /**
@@ -33,30 +57,27 @@ public class Communicator {
      *
      * @param	word	the integer to transfer.
      */
-    
-    
     public void speak(int word) {
-    	communicatorLock.acquire();
-    	
-		//speaker sleeps until listener is ready
-    	while(mailStatus){
-    		speaker.sleep(); 
-    	}
-    	
-    	mailStatus = true; 
-    	mail = word;
-
-    	//if there are no sleepers then make the listenerStatus sleep
-    	while(numOfListeners == 0 ) {
-    		listenerStatus.sleep(); 
-    	}
-
-    	listener.wake(); 
-    	listenerStatus.sleep(); 
-
-    	mailStatus= false;
-    	speaker.wake();
-    	communicatorLock.release();
+	if (capacity > 0) {
+	    put(word);
+	    return;
+	}
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Waiter listener = listeners.poll();
+	if (listener != null) {
+	    listener.word = word;
+	    listener.thread.ready();
+	}
+	else {
+	    Waiter speaker = waiterOf(KThread.currentThread());
+	    speaker.word = word;
+	    speakers.add(speaker);
+	    KThread.sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -66,23 +87,250 @@ public class Communicator {
      * @return	the integer transferred.
      */    
     public int listen() {
-    	communicatorLock.acquire();
+	return receive(false, 0);
+    }
+
+    /**
+     * Wait at most <i>ticks</i> clock ticks for a thread to speak through
+     * this communicator, and return the <i>word</i> that thread passed to
+     * <tt>speak()</tt>. A listener that gives up is not paired with any
+     * speaker.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	the integer transferred, or <tt>null</tt> if the time ran
+     *		out.
+     */
+    public Integer listen(long ticks) {
+	return receive(true, ticks);
+    }
+
+    private Integer receive(boolean timed, long ticks) {
+	if (capacity > 0)
+	    return get(timed, ticks);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Integer word = null;
+	Waiter speaker = speakers.poll();
+	if (speaker != null) {
+	    word = speaker.word;
+	    speaker.thread.ready();
+	}
+	else if (!timed || ticks > 0) {
+	    Waiter listener = waiterOf(KThread.currentThread());
+	    listeners.add(listener);
+
+	    if (!timed) {
+		KThread.sleep();
+		word = listener.word;
+	    }
+	    else if (ThreadedKernel.alarm.waitUntil(ticks, listeners)) {
+		word = listener.word;
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return word;
+    }
+
+    /**
+     * Append a word to the buffer, waiting while it is full.
+     */
+    private void put(int word) {
+	communicatorLock.acquire();
+
+	while (count == capacity)
+	    notFull.sleep();
+
+	buffer[(first + count) % capacity] = word;
+	count++;
+	notEmpty.wake();
+
+	communicatorLock.release();
+    }
+
+    /**
+     * Remove the oldest word from the buffer, waiting while it is empty, for
+     * at most <i>ticks</i> clock ticks if <i>timed</i> is set.
+     */
+    private Integer get(boolean timed, long ticks) {
+	long deadline = Machine.timer().getTime() + ticks;
+
+	communicatorLock.acquire();
+
+	while (count == 0) {
+	    if (!timed) {
+		notEmpty.sleep();
+		continue;
+	    }
+
+	    long remaining = deadline - Machine.timer().getTime();
+	    if (remaining <= 0 || !notEmpty.sleepFor(remaining))
+		break;
+	}
+
+	Integer word = null;
+	if (count > 0) {
+	    word = buffer[first];
+	    first = (first + 1) % capacity;
+	    count--;
+	    notFull.wake();
+	}
 
-		//add listener
-    	numOfListeners++; 
+	communicatorLock.release();
+	return word;
+    }
+
+    private static class SpeakTest implements Runnable {
+	SpeakTest(Communicator communicator, int words) {
+	    this.communicator = communicator;
+	    this.words = words;
+	}
+
+	public void run() {
+	    for (int i=0; i<words; i++)
+		communicator.speak(i);
+	}
+
+	private Communicator communicator;
+	private int words;
+    }
+
+    /**
+     * Measure how many words a speaker and a listener can exchange per clock
+     * tick, without a buffer and with one.
+     */
+    public static void benchmark() {
+	final int words = 10000;
+	int[] capacities = { 0, 16 };
+
+	for (int i=0; i<capacities.length; i++) {
+	    Communicator communicator = new Communicator(capacities[i]);
 
-    	if(numOfListeners >=1 && mailStatus) {
-    		listenerStatus.wake();
-    	}
+	    long startTicks = Machine.timer().getTime();
+	    long start = System.nanoTime();
+	    new KThread(new SpeakTest(communicator, words)).fork();
+	    for (int j=0; j<words; j++)
+		Lib.assertTrue(communicator.listen() == j);
+	    long elapsed = System.nanoTime() - start;
+	    long ticks = Math.max(1, Machine.timer().getTime() - startTicks);
 
-    	listener.sleep(); 
-    	listenerStatus.wake(); 
+	    System.out.println("Communicator (capacity " + capacities[i]
+			       + "): " + Math.round(words*1000.0/ticks)/1000.0
+			       + " words per tick (" + ticks / words
+			       + " ticks per word), " + elapsed / words
+			       + " ns per word");
+	}
+    }
 
-		//you've got mail
-    	int recieved = mail;
-    	communicatorLock.release();
-    	return recieved;
+    /**
+     * Return the wait node of a thread, allocating it the first time.
+     */
+    private static Waiter waiterOf(KThread thread) {
+	if (thread.communicatorWaiter == null)
+	    thread.communicatorWaiter = new Waiter(thread);
 
+	return thread.communicatorWaiter;
     }
-    
-}
\ No newline at end of file
+
+    /**
+     * A thread waiting to speak or listen, and the word it is passing.
+     */
+    static class Waiter {
+	Waiter(KThread thread) {
+	    this.thread = thread;
+	}
+
+	KThread thread;
+	int word;
+	Waiter prev = null, next = null;
+	/** The list this node is on, or <tt>null</tt>. */
+	WaitList list = null;
+    }
+
+    /**
+     * A doubly linked FIFO list of wait nodes. It is a <tt>ThreadQueue</tt>
+     * so that a listener that gives up can be withdrawn by the alarm, which
+     * unlinks its node in O(1).
+     */
+    static class WaitList extends ThreadQueue {
+	/** Append a wait node. */
+	void add(Waiter waiter) {
+	    Lib.assertTrue(waiter.list == null);
+
+	    waiter.prev = last;
+	    waiter.next = null;
+	    if (last == null)
+		first = waiter;
+	    else
+		last.next = waiter;
+	    last = waiter;
+	    waiter.list = this;
+	}
+
+	/** Remove and return the oldest wait node, or <tt>null</tt>. */
+	Waiter poll() {
+	    Waiter waiter = first;
+	    if (waiter != null)
+		unlink(waiter);
+	    return waiter;
+	}
+
+	private void unlink(Waiter waiter) {
+	    if (waiter.prev == null)
+		first = waiter.next;
+	    else
+		waiter.prev.next = waiter.next;
+	    if (waiter.next == null)
+		last = waiter.prev;
+	    else
+		waiter.next.prev = waiter.prev;
+
+	    waiter.prev = waiter.next = null;
+	    waiter.list = null;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    add(waiterOf(thread));
+	}
+
+	public KThread nextThread() {
+	    Waiter waiter = poll();
+	    return (waiter == null) ? null : waiter.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Waiter waiter = thread.communicatorWaiter;
+	    if (waiter == null || waiter.list != this)
+		return false;
+
+	    unlink(waiter);
+	    return true;
+	}
+
+	public void acquire(KThread thread) {
+	}
+
+	public void print() {
+	    for (Waiter w=first; w!=null; w=w.next)
+		System.out.print(w.thread + " ");
+	}
+
+	private Waiter first = null, last = null;
+    }
+
+    /** The speakers waiting for a listener, in arrival order. */
+    private WaitList speakers = new WaitList();
+    /** The listeners waiting for a speaker, in arrival order. */
+    private WaitList listeners = new WaitList();
+
+    private int capacity;
+    /** The words spoken and not yet heard, <tt>count</tt> from <tt>first</tt>. */
+    private int[] buffer = null;
+    private int first = 0, count = 0;
+    private Lock communicatorLock = new Lock();
+    private Condition notFull = new Condition(communicatorLock);
+    private Condition notEmpty = new Condition(communicatorLock);
+}
@@ -2,7 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 
 /**
  * An implementation of condition variables built upon semaphores.
@@ -60,31 +61,59 @@ public class Condition {
      */
     public Condition(Lock conditionLock) {
 	this.conditionLock = conditionLock;
-
-	waitQueue = new LinkedList<Semaphore>();
     }
 
     /**
      * Atomically release the associated lock and go to sleep on this condition
      * variable until another thread wakes it using <tt>wake()</tt>. The
      * current thread must hold the associated lock. The thread will
-     * automatically reacquire the lock before <tt>sleep()</tt> returns.
+     * automatically reacquire the lock before <tt>sleep()</tt> returns. If
+     * the lock is a <tt>ReentrantLock</tt>, every hold is released and then
+     * restored.
      *
      * <p>
-     * This implementation uses semaphores to implement this, by allocating a
-     * semaphore for each waiting thread. The waker will <tt>V()</tt> this
+     * This implementation uses semaphores to implement this, by giving each
+     * waiting thread a semaphore. The waker will <tt>V()</tt> this
      * semaphore, so thre is no chance the sleeper will miss the wake-up, even
-     * though the lock is released before caling <tt>P()</tt>.
+     * though the lock is released before caling <tt>P()</tt>. A thread can
+     * only wait on one condition at a time, so each thread keeps a single
+     * waiter node, with its semaphore, and reuses it for every wait.
      */
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	Semaphore waiter = new Semaphore(0);
-	waitQueue.add(waiter);
+	Waiter waiter = enqueue();
 
-	conditionLock.release();
-	waiter.P();
-	conditionLock.acquire();	
+	int holds = conditionLock.releaseAll();
+	waiter.semaphore.P();
+	conditionLock.reacquire(holds);
+    }
+
+    /**
+     * Like <tt>sleep()</tt>, but give up waiting for <tt>wake()</tt> after
+     * <i>ticks</i> clock ticks. The thread reacquires the lock either way.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was woken, <tt>false</tt> if the
+     *		time ran out.
+     */
+    public boolean sleepFor(long ticks) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	Waiter waiter = enqueue();
+
+	int holds = conditionLock.releaseAll();
+	boolean woken = waiter.semaphore.tryP(1, ticks);
+	conditionLock.reacquire(holds);
+
+	// a wake() may have picked this waiter after the time ran out; take
+	// back the V() it did, so the next wait doesn't return at once
+	if (!woken && !unlink(waiter)) {
+	    woken = waiter.semaphore.tryP(1);
+	    Lib.assertTrue(woken);
+	}
+
+	return woken;
     }
 
     /**
@@ -94,8 +123,11 @@ public class Condition {
     public void wake() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	if (!waitQueue.isEmpty())
-	    ((Semaphore) waitQueue.removeFirst()).V();
+	if (head != null) {
+	    Waiter waiter = head;
+	    unlink(waiter);
+	    waiter.semaphore.V();
+	}
     }
 
     /**
@@ -105,10 +137,167 @@ public class Condition {
     public void wakeAll() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	while (!waitQueue.isEmpty())
+	while (head != null)
 	    wake();
     }
 
+    /**
+     * Append the current thread's waiter node to the wait list, allocating
+     * the node if this is the thread's first wait.
+     */
+    private Waiter enqueue() {
+	KThread thread = KThread.currentThread();
+	if (thread.waiter == null)
+	    thread.waiter = new Waiter();
+
+	Waiter waiter = thread.waiter;
+	Lib.assertTrue(!waiter.queued);
+
+	waiter.prev = tail;
+	waiter.next = null;
+	if (tail == null)
+	    head = waiter;
+	else
+	    tail.next = waiter;
+	tail = waiter;
+	waiter.queued = true;
+
+	return waiter;
+    }
+
+    /**
+     * Take a waiter node off the wait list.
+     *
+     * @return	<tt>true</tt> if the node was on the list.
+     */
+    private boolean unlink(Waiter waiter) {
+	if (!waiter.queued)
+	    return false;
+
+	if (waiter.prev == null)
+	    head = waiter.next;
+	else
+	    waiter.prev.next = waiter.next;
+	if (waiter.next == null)
+	    tail = waiter.prev;
+	else
+	    waiter.next.prev = waiter.prev;
+
+	waiter.prev = waiter.next = null;
+	waiter.queued = false;
+
+	return true;
+    }
+
+    private static class PingTest implements Runnable {
+	PingTest(Lock lock, Condition cond, int rounds) {
+	    this.lock = lock;
+	    this.cond = cond;
+	    this.rounds = rounds;
+	}
+
+	public void run() {
+	    lock.acquire();
+	    for (int i=0; i<rounds; i++) {
+		cond.wake();
+		cond.sleep();
+	    }
+	    cond.wake();
+	    lock.release();
+	}
+
+	private Lock lock;
+	private Condition cond;
+	private int rounds;
+    }
+
+    /**
+     * Return the number of bytes every Java thread has allocated so far, or
+     * -1 if the JVM can't tell.
+     */
+    private static long allocatedBytes() {
+	ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+	if (!(bean instanceof com.sun.management.ThreadMXBean))
+	    return -1;
+
+	long[] bytes = ((com.sun.management.ThreadMXBean) bean)
+	    .getThreadAllocatedBytes(bean.getAllThreadIds());
+	long total = 0;
+	for (int i=0; i<bytes.length; i++)
+	    total += Math.max(bytes[i], 0);
+	return total;
+    }
+
+    /**
+     * Measure what a wait costs in time and in memory allocated. Two threads
+     * take turns waking each other and going to sleep on the same
+     * condition, after a warm-up that gives each its waiter node. Every wait
+     * includes a context switch, which may allocate memory in the machine,
+     * so two threads yielding to each other are measured first to tell the
+     * two apart.
+     */
+    public static void benchmark() {
+	final int rounds = 100000;
+
+	KThread yielder = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<rounds+100; i++)
+			KThread.yield();
+		}
+	    });
+	yielder.fork();
+	for (int i=0; i<100; i++)
+	    KThread.yield();
+
+	long startBytes = allocatedBytes();
+	for (int i=0; i<rounds; i++)
+	    KThread.yield();
+	long switchBytes = allocatedBytes() - startBytes;
+
+	Lock lock = new Lock();
+	Condition cond = new Condition(lock);
+	new KThread(new PingTest(lock, cond, rounds + 100)).fork();
+
+	lock.acquire();
+	for (int i=0; i<100; i++) {
+	    cond.wake();
+	    cond.sleep();
+	}
+
+	startBytes = allocatedBytes();
+	long start = System.nanoTime();
+	for (int i=0; i<rounds; i++) {
+	    cond.wake();
+	    cond.sleep();
+	}
+	long elapsed = System.nanoTime() - start;
+	long bytes = allocatedBytes() - startBytes;
+
+	cond.wake();
+	lock.release();
+
+	System.out.println("Condition: " + elapsed / (2*rounds)
+			   + " ns per wait");
+	if (startBytes >= 0) {
+	    System.out.println("Condition: " + bytes / (2*rounds)
+			       + " bytes allocated per wait, of which "
+			       + switchBytes / (2*rounds)
+			       + " per context switch");
+	}
+    }
+
     private Lock conditionLock;
-    private LinkedList<Semaphore> waitQueue;
+    /** The waiting threads' nodes, in the order they went to sleep. */
+    private Waiter head = null, tail = null;
+
+    /**
+     * A thread's node in the wait list of the condition it is sleeping on,
+     * and the semaphore it sleeps on.
+     */
+    static class Waiter {
+	Semaphore semaphore = new Semaphore(0);
+	Waiter prev = null, next = null;
+	/** <tt>true</tt> while the node is on a wait list. */
+	boolean queued = false;
+    }
 }
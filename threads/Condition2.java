@@ -1,14 +1,15 @@
 package nachos.threads;
 import nachos.machine.*;
-import java.util.LinkedList;
-
 
 /**
  * An implementation of condition variables that disables interrupt()s for
  * synchronization.
  *
  * <p>
- * You must implement this.
+ * Sleeping threads wait on a queue provided by the scheduler, so
+ * <tt>wake()</tt> wakes the thread the scheduler would choose next: the
+ * highest priority one under <tt>PriorityScheduler</tt>, the one with the
+ * earliest deadline under <tt>EDFScheduler</tt>, and so on.
  *
  * @see	nachos.threads.Condition
  */
@@ -29,22 +30,47 @@ public class Condition2 {
      * Atomically release the associated lock and go to sleep on this condition
      * variable until another thread wakes it using <tt>wake()</tt>. The
      * current thread must hold the associated lock. The thread will
-     * automatically reacquire the lock before <tt>sleep()</tt> returns.
+     * automatically reacquire the lock before <tt>sleep()</tt> returns. If
+     * the lock is a <tt>ReentrantLock</tt>, every hold is released and then
+     * restored.
      */
     public void sleep() {
-        //interrupt thread
-        boolean status = Machine.interrupt().disable();
-        
-        conditionLock.release();
-
-        //add thread to sleep queue
-        sleepQueue.addFirst(KThread.currentThread());
-        KThread.sleep();
-
-        conditionLock.acquire();
-        
-        //restore interrupted thread
-        Machine.interrupt().restore(status);	
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int holds = conditionLock.releaseAll();
+
+	sleepQueue.waitForAccess(KThread.currentThread());
+	KThread.sleep();
+
+	conditionLock.reacquire(holds);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Like <tt>sleep()</tt>, but give up waiting for <tt>wake()</tt> after
+     * <i>ticks</i> clock ticks. The thread reacquires the lock either way.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was woken, <tt>false</tt> if the
+     *		time ran out.
+     */
+    public boolean sleepFor(long ticks) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int holds = conditionLock.releaseAll();
+
+	sleepQueue.waitForAccess(KThread.currentThread());
+	boolean woken = ThreadedKernel.alarm.waitUntil(ticks, sleepQueue);
+
+	conditionLock.reacquire(holds);
+
+	Machine.interrupt().restore(intStatus);
+	return woken;
     }
 
     /**
@@ -52,28 +78,37 @@ public class Condition2 {
      * current thread must hold the associated lock.
      */
     public void wake() {
-        //interrupt thread
-        boolean status = Machine.interrupt().disable();
-        
-        //wake thread if there are threads in the sleepQueue
-        if(sleepQueue.size() >= 1){
-            sleepQueue.removeLast().ready();	
-        }
-
-        Machine.interrupt().restore(status);
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = sleepQueue.nextThread();
+	if (thread != null)
+	    thread.ready();
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
      * Wake up all threads sleeping on this condition variable. The current
-     * thread must hold the associated lock.
+     * thread must hold the associated lock. The whole queue is drained with
+     * interrupts disabled once, and the threads are made ready in the order
+     * the scheduler chooses them.
      */
     public void wakeAll() {
-        while(sleepQueue.size() >= 1){
-            wake();
-        }
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread;
+	while ((thread = sleepQueue.nextThread()) != null)
+	    thread.ready();
+
+	Machine.interrupt().restore(intStatus);
     }
 
-    Lock conditionLock;
-    //threads sleeping on condition
-    LinkedList<KThread> sleepQueue = new LinkedList<KThread>();
+    private Lock conditionLock;
+    /** The threads sleeping on this condition, in the scheduler's order. */
+    private ThreadQueue sleepQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
 }
@@ -0,0 +1,632 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A scheduler whose queues can pass something from the threads waiting on
+ * them to the thread that has access, such as a priority or a deadline.
+ *
+ * <p>
+ * Every thread has a key of its own, and an effective key that also takes
+ * into account what it receives from the queues it owns. A queue that
+ * transfers priority donates a value computed from the effective keys of its
+ * waiters. Subclasses decide what the key means: <tt>combine()</tt> picks
+ * the more urgent of two keys, and a subclass whose donations don't simply
+ * compete, such as one where they add up, overrides
+ * <tt>receiveDonation()</tt> and <tt>computeEffective()</tt> instead.
+ *
+ * <p>
+ * Effective keys are kept up to date eagerly. Whenever a waiter arrives,
+ * leaves, or changes its key, only the resulting change in the donation is
+ * pushed to the owner of the queue, and from there along the chain of
+ * owners, stopping at the first thread whose effective key is unaffected.
+ * The walk is a loop rather than a recursion, so arbitrarily long lock
+ * chains are handled in constant stack space.
+ *
+ * <p>
+ * Access to a queue may also be shared, by the readers of a reader-writer
+ * lock for instance. Each thread sharing a queue gets a
+ * <tt>SharedAccess</tt> stand-in, which it owns like any other queue and
+ * which passes on the donation of the shared queue, so every one of them
+ * receives it. A change in the donation of a shared queue starts a walk
+ * from each thread sharing it.
+ */
+public abstract class DonationScheduler extends Scheduler {
+    /**
+     * Allocate a new donation scheduler.
+     */
+    public DonationScheduler() {
+    }
+
+    /**
+     * Return the more urgent of two keys, or either of them if they are
+     * equally urgent.
+     *
+     * @param	a	a key.
+     * @param	b	another key.
+     * @return	the more urgent key.
+     */
+    protected abstract long combine(long a, long b);
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected abstract DonationState getThreadState(KThread thread);
+
+    /** Source of arrival tickets for threads entering a queue. */
+    private int waitSequence = 0;
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps track of the thread that has access
+     * to it, and passes that thread the donation of its waiters. Subclasses
+     * decide how waiters are kept and chosen, and what they donate.
+     */
+    protected abstract class DonationQueue extends ThreadQueue {
+	DonationQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).acquire(this);
+	}
+
+	public void acquireShared(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).acquireShared(this);
+	}
+
+	public void releaseShared(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).releaseShared(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    DonationState nextThread = pickNextThread();
+	    if (nextThread == null) {
+		releaseSharers();
+		if (resourceList != null)
+		    resourceList.releaseAccess(this);
+		return null;
+	    }
+
+	    nextThread.acquire(this);
+
+	    return nextThread.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    return getThreadState(thread).stopWaiting(this);
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected abstract DonationState pickNextThread();
+
+	/**
+	 * Return what this queue passes on to its owner, or
+	 * <tt>noDonation()</tt> if this queue does not transfer priority or
+	 * nobody is waiting.
+	 *
+	 * @return	the donation of this queue.
+	 */
+	public abstract long getDonation();
+
+	/**
+	 * Return the donation of a queue nobody is waiting on. This is also
+	 * what a thread is considered to receive from a queue it does not
+	 * own.
+	 *
+	 * @return	the neutral donation.
+	 */
+	protected abstract long noDonation();
+
+	/** Add a newly waiting thread. */
+	abstract void enqueue(DonationState state);
+
+	/** Take a thread out, because it stopped waiting or got access. */
+	abstract void dequeue(DonationState state);
+
+	/**
+	 * Reorder a waiting thread whose effective key has changed from
+	 * <i>oldEffective</i>.
+	 */
+	abstract void requeue(DonationState state, long oldEffective);
+
+	/**
+	 * Pass a change in this queue's donation on to the threads that have
+	 * access.
+	 *
+	 * @param	oldDonation	what <tt>getDonation()</tt> returned before
+	 *				the change.
+	 */
+	void donationChanged(long oldDonation) {
+	    long newDonation = getDonation();
+	    if (newDonation == oldDonation)
+		return;
+
+	    passToSharers(oldDonation, newDonation);
+	    if (resourceList != null)
+		resourceList.propagate(resourceList.receiveDonation(oldDonation,
+								    newDonation));
+	}
+
+	/**
+	 * Pass a change in this queue's donation on to every thread sharing
+	 * access. Each of them starts a walk of its own.
+	 */
+	void passToSharers(long oldDonation, long newDonation) {
+	    for (SharedAccess s=sharers; s!=null; s=s.nextSharer) {
+		s.resourceList.propagate(
+		    s.resourceList.receiveDonation(oldDonation, newDonation));
+	    }
+	}
+
+	/**
+	 * Link a stand-in for a thread that is about to share access, reusing
+	 * one left over from an earlier sharer if possible.
+	 */
+	SharedAccess share() {
+	    SharedAccess share = spareShares;
+	    if (share != null)
+		spareShares = share.nextSharer;
+	    else
+		share = new SharedAccess(this);
+
+	    share.prevSharer = null;
+	    share.nextSharer = sharers;
+	    if (sharers != null)
+		sharers.prevSharer = share;
+	    sharers = share;
+
+	    return share;
+	}
+
+	/**
+	 * Unlink the stand-in of a thread that no longer shares access, and
+	 * keep it for the next one.
+	 */
+	void unshare(SharedAccess share) {
+	    if (share.prevSharer == null)
+		sharers = share.nextSharer;
+	    else
+		share.prevSharer.nextSharer = share.nextSharer;
+	    if (share.nextSharer != null)
+		share.nextSharer.prevSharer = share.prevSharer;
+
+	    share.prevSharer = null;
+	    share.nextSharer = spareShares;
+	    spareShares = share;
+	}
+
+	/** End all sharing of access to this queue. */
+	void releaseSharers() {
+	    while (sharers != null)
+		sharers.resourceList.releaseShared(this);
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer priority from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread that currently has access, or <tt>null</tt>. */
+	protected DonationState resourceList = null;
+	/** Neighbours in the owner's list of queues it has access to. */
+	protected DonationQueue prevResource = null, nextResource = null;
+
+	/** The stand-ins of the threads sharing access, if any. */
+	private SharedAccess sharers = null;
+	/** Stand-ins of former sharers, linked through <tt>nextSharer</tt>. */
+	private SharedAccess spareShares = null;
+    }
+
+    /**
+     * Stands in for a shared queue in the list of queues that one of the
+     * threads sharing it owns. Nobody waits on it; it only passes on the
+     * donation of the shared queue.
+     */
+    private class SharedAccess extends DonationQueue {
+	SharedAccess(DonationQueue target) {
+	    super(true);
+	    this.target = target;
+	}
+
+	protected DonationState pickNextThread() {
+	    return null;
+	}
+
+	public long getDonation() {
+	    return target.getDonation();
+	}
+
+	protected long noDonation() {
+	    return target.noDonation();
+	}
+
+	public void print() {
+	}
+
+	void enqueue(DonationState state) {
+	    Lib.assertNotReached();
+	}
+
+	void dequeue(DonationState state) {
+	    Lib.assertNotReached();
+	}
+
+	void requeue(DonationState state, long oldEffective) {
+	    Lib.assertNotReached();
+	}
+
+	/** The queue whose access is shared. */
+	private DonationQueue target;
+	/** Neighbours in the shared queue's list of sharers. */
+	private SharedAccess prevSharer = null, nextSharer = null;
+    }
+
+    /**
+     * The scheduling state of a thread: its effective key, the queue it is
+     * waiting on and the queues it has access to.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected abstract class DonationState {
+	/**
+	 * Allocate a new <tt>DonationState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread		the thread this state belongs to.
+	 * @param	effective	the thread's initial key.
+	 */
+	public DonationState(KThread thread, long effective) {
+	    this.thread = thread;
+	    this.effective = effective;
+	}
+
+	/**
+	 * Return the key of the associated thread, without donations.
+	 *
+	 * @return	the key of the associated thread.
+	 */
+	protected abstract long getKey();
+
+	/**
+	 * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+	 * the associated thread) is invoked on the specified queue. The
+	 * associated thread is therefore waiting for access to the resource
+	 * guarded by <tt>waitQueue</tt>. This method is only called if the
+	 * associated thread cannot immediately obtain access.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 *
+	 * @see	nachos.threads.ThreadQueue#waitForAccess
+	 */
+	public void waitForAccess(DonationQueue waitQueue) {
+	    Lib.assertTrue(resourceWait == null);
+
+	    if (waitQueue.resourceList == this)
+		releaseAccess(waitQueue);
+
+	    resourceWait = waitQueue;
+	    arrival = waitSequence++;
+
+	    long oldDonation = waitQueue.getDonation();
+	    waitQueue.enqueue(this);
+	    waitQueue.donationChanged(oldDonation);
+	}
+
+	/**
+	 * Called when the associated thread gives up waiting on
+	 * <tt>waitQueue</tt>. Its donation to the owner of the queue is
+	 * withdrawn.
+	 *
+	 * @param	waitQueue	the queue the thread may be waiting on.
+	 * @return	<tt>true</tt> if the thread was waiting on
+	 *		<tt>waitQueue</tt>.
+	 *
+	 * @see	nachos.threads.ThreadQueue#remove
+	 */
+	public boolean stopWaiting(DonationQueue waitQueue) {
+	    if (resourceWait != waitQueue)
+		return false;
+
+	    long oldDonation = waitQueue.getDonation();
+	    waitQueue.dequeue(this);
+	    resourceWait = null;
+	    waitQueue.donationChanged(oldDonation);
+
+	    return true;
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>. This can occur either as a result of
+	 * <tt>acquire(thread)</tt> being invoked on <tt>waitQueue</tt> (where
+	 * <tt>thread</tt> is the associated thread), or as a result of
+	 * <tt>nextThread()</tt> being invoked on <tt>waitQueue</tt>.
+	 *
+	 * @see	nachos.threads.ThreadQueue#acquire
+	 * @see	nachos.threads.ThreadQueue#nextThread
+	 */
+	public void acquire(DonationQueue waitQueue) {
+	    if (waitQueue.resourceList == this)
+		return;
+
+	    waitQueue.releaseSharers();
+	    if (waitQueue.resourceList != null)
+		waitQueue.resourceList.releaseAccess(waitQueue);
+
+	    if (resourceWait == waitQueue) {
+		waitQueue.dequeue(this);
+		resourceWait = null;
+	    }
+
+	    waitQueue.prevResource = null;
+	    waitQueue.nextResource = resources;
+	    if (resources != null)
+		resources.prevResource = waitQueue;
+	    resources = waitQueue;
+	    waitQueue.resourceList = this;
+
+	    propagate(receiveDonation(waitQueue.noDonation(),
+				      waitQueue.getDonation()));
+	}
+
+	/**
+	 * Called when the associated thread starts sharing access to whatever
+	 * is guarded by <tt>waitQueue</tt>. A thread that had access to it
+	 * alone loses it.
+	 *
+	 * @param	waitQueue	the queue the associated thread now shares.
+	 *
+	 * @see	nachos.threads.ThreadQueue#acquireShared
+	 */
+	public void acquireShared(DonationQueue waitQueue) {
+	    if (waitQueue.resourceList != null)
+		waitQueue.resourceList.releaseAccess(waitQueue);
+	    stopWaiting(waitQueue);
+
+	    acquire(waitQueue.share());
+	}
+
+	/**
+	 * Called when the associated thread stops sharing access to whatever
+	 * is guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue the associated thread no longer
+	 *				shares.
+	 *
+	 * @see	nachos.threads.ThreadQueue#releaseShared
+	 */
+	public void releaseShared(DonationQueue waitQueue) {
+	    for (DonationQueue q=resources; q!=null; q=q.nextResource) {
+		if (q instanceof SharedAccess &&
+		    ((SharedAccess) q).target == waitQueue) {
+		    releaseAccess(q);
+		    waitQueue.unshare((SharedAccess) q);
+		    return;
+		}
+	    }
+	}
+
+	/**
+	 * Called when the associated thread gives up access to whatever is
+	 * guarded by <tt>waitQueue</tt>, either because the queue handed it to
+	 * another thread or because nobody was left waiting for it.
+	 *
+	 * @param	waitQueue	the queue the associated thread no longer
+	 *				owns.
+	 */
+	public void releaseAccess(DonationQueue waitQueue) {
+	    Lib.assertTrue(waitQueue.resourceList == this);
+
+	    if (waitQueue.prevResource == null)
+		resources = waitQueue.nextResource;
+	    else
+		waitQueue.prevResource.nextResource = waitQueue.nextResource;
+	    if (waitQueue.nextResource != null)
+		waitQueue.nextResource.prevResource = waitQueue.prevResource;
+	    waitQueue.prevResource = waitQueue.nextResource = null;
+	    waitQueue.resourceList = null;
+
+	    propagate(receiveDonation(waitQueue.getDonation(),
+				      waitQueue.noDonation()));
+	}
+
+	/**
+	 * Return what this thread's effective key becomes when one of its
+	 * inputs (its own key, or the donation from one of the queues it
+	 * owns) changes from <i>oldDonation</i> to <i>newDonation</i>. Only a
+	 * loss of the value currently in effect requires looking at the other
+	 * inputs again.
+	 */
+	protected long receiveDonation(long oldDonation, long newDonation) {
+	    if (combine(newDonation, effective) == newDonation)
+		return newDonation;
+	    if (oldDonation == effective)
+		return computeEffective();
+	    return effective;
+	}
+
+	/**
+	 * Recompute this thread's effective key from scratch. This only looks
+	 * one level down, at the cached donation of each owned queue.
+	 */
+	protected long computeEffective() {
+	    long value = getKey();
+	    for (DonationQueue q=resources; q!=null; q=q.nextResource)
+		value = combine(value, q.getDonation());
+	    return value;
+	}
+
+	/**
+	 * Install a new effective key for this thread and push the change to
+	 * the owner of the queue this thread is waiting on, repeating until
+	 * some thread along the chain is unaffected.
+	 *
+	 * @param	newEffective	the new effective key of this thread.
+	 */
+	protected void propagate(long newEffective) {
+	    DonationState state = this;
+
+	    while (state.effective != newEffective) {
+		DonationQueue waitQueue = state.resourceWait;
+		if (waitQueue == null) {
+		    state.effective = newEffective;
+		    return;
+		}
+
+		// the donation may be read from the waiters' keys, so take it
+		// before this one changes
+		long oldDonation = waitQueue.getDonation();
+		long oldEffective = state.effective;
+		state.effective = newEffective;
+		waitQueue.requeue(state, oldEffective);
+		long newDonation = waitQueue.getDonation();
+		if (oldDonation == newDonation)
+		    return;
+
+		waitQueue.passToSharers(oldDonation, newDonation);
+
+		state = waitQueue.resourceList;
+		if (state == null)
+		    return;
+
+		newEffective = state.receiveDonation(oldDonation, newDonation);
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The key of the associated thread, including donations. */
+	protected long effective;
+
+	/**
+	 * The queue this thread is waiting on, if any. A thread never waits on
+	 * more than one queue at a time, so a single slot is enough.
+	 */
+	protected DonationQueue resourceWait = null;
+	/**
+	 * The first of the queues this thread currently has access to. The rest
+	 * are chained through the queues' own <tt>nextResource</tt> links, so
+	 * owning a queue costs the thread no allocation, and giving it up is an
+	 * O(1) unlink.
+	 */
+	protected DonationQueue resources = null;
+
+	/** This thread's index in its queue's heap, or -1. */
+	protected int heapIndex = -1;
+	/**
+	 * When this thread started waiting; breaks ties between equal keys.
+	 * Tickets are compared by their difference, so wrapping around is
+	 * harmless as long as no thread waits through 2^31 later arrivals.
+	 */
+	protected int arrival;
+    }
+
+    /**
+     * A binary heap of waiting threads. Every thread in it keeps its index
+     * in <tt>heapIndex</tt> as a handle, so it can be removed, or moved
+     * after its position in the order has changed, in O(log n). Subclasses
+     * define the order.
+     */
+    protected static abstract class WaiterHeap {
+	/**
+	 * Return <tt>true</tt> if <i>a</i> should come out of the heap before
+	 * <i>b</i>.
+	 */
+	protected abstract boolean before(DonationState a, DonationState b);
+
+	/**
+	 * Return the first thread in the heap, or <tt>null</tt> if it is
+	 * empty.
+	 */
+	DonationState peek() {
+	    return (size == 0) ? null : heap[0];
+	}
+
+	void add(DonationState state) {
+	    if (size == heap.length)
+		heap = Arrays.copyOf(heap, size*2);
+
+	    siftUp(size++, state);
+	}
+
+	void remove(DonationState state) {
+	    DonationState last = heap[--size];
+	    heap[size] = null;
+	    if (last != state)
+		reposition(state.heapIndex, last);
+
+	    state.heapIndex = -1;
+	}
+
+	/**
+	 * Restore heap order around a thread whose position in the order has
+	 * changed.
+	 */
+	void update(DonationState state) {
+	    reposition(state.heapIndex, state);
+	}
+
+	private void reposition(int index, DonationState state) {
+	    siftDown(index, state);
+	    if (heap[index] == state)
+		siftUp(index, state);
+	}
+
+	private void siftUp(int index, DonationState state) {
+	    while (index > 0) {
+		int parent = (index-1) >>> 1;
+		if (!before(state, heap[parent]))
+		    break;
+		heap[index] = heap[parent];
+		heap[index].heapIndex = index;
+		index = parent;
+	    }
+	    heap[index] = state;
+	    state.heapIndex = index;
+	}
+
+	private void siftDown(int index, DonationState state) {
+	    while (true) {
+		int child = 2*index + 1;
+		if (child >= size)
+		    break;
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+		if (!before(heap[child], state))
+		    break;
+		heap[index] = heap[child];
+		heap[index].heapIndex = index;
+		index = child;
+	    }
+	    heap[index] = state;
+	    state.heapIndex = index;
+	}
+
+	DonationState[] heap = new DonationState[4];
+	int size = 0;
+    }
+}
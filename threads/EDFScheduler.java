@@ -0,0 +1,328 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that chooses threads by earliest deadline.
+ *
+ * <p>
+ * Every thread may be given an absolute deadline, measured in
+ * <tt>Machine.timer()</tt> ticks, with <tt>setDeadline()</tt>. The next
+ * thread to be dequeued is always the waiting thread with the earliest
+ * effective deadline; among threads with the same deadline, the one that has
+ * been waiting longest. Threads without a deadline sort after every thread
+ * that has one, in FIFO order.
+ *
+ * <p>
+ * Deadlines are inherited through locks and joins the same way priorities
+ * are donated by <tt>PriorityScheduler</tt>: the effective deadline of a
+ * thread is the earliest of its own deadline and the deadlines of all threads
+ * waiting for it through a queue that transfers priority.
+ *
+ * <p>
+ * The scheduler counts deadline misses, so that overload can be seen. A
+ * thread has missed its deadline if it is still being scheduled after the
+ * deadline has passed: if the ready queue chooses it to run, or it gives up
+ * the CPU while still runnable (which is how preemption by the
+ * <tt>Alarm</tt> is seen), and the current time is past its deadline. A
+ * deadline that has passed when the thread is given a new one is counted
+ * too. Each deadline is counted at most once. A periodic thread that
+ * finishes a job in time should therefore set its next deadline before it
+ * blocks until the next period, so that being woken after the old deadline
+ * doesn't count as a miss.
+ */
+public class EDFScheduler extends DonationScheduler {
+    /**
+     * Allocate a new EDF scheduler.
+     */
+    public EDFScheduler() {
+    }
+
+    /**
+     * Allocate a new deadline-ordered thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					pass waiting threads' deadlines on to
+     *					the owning thread.
+     * @return	a new deadline-ordered thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new DeadlineQueue(transferPriority, false);
+    }
+
+    /**
+     * Allocate the ready queue. It is a deadline-ordered queue that also
+     * counts deadline misses.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new DeadlineQueue(false, true);
+    }
+
+    /**
+     * Get the deadline of the specified thread. Must be called with
+     * interrupts disabled.
+     *
+     * @param	thread	the thread to get the deadline of.
+     * @return	the thread's deadline, or <tt>noDeadline</tt>.
+     */
+    public long getDeadline(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).deadline;
+    }
+
+    /**
+     * Get the effective deadline of the specified thread, after taking into
+     * account the deadlines it inherits. Must be called with interrupts
+     * disabled.
+     *
+     * @param	thread	the thread to get the effective deadline of.
+     * @return	the thread's effective deadline, or <tt>noDeadline</tt>.
+     */
+    public long getEffectiveDeadline(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).effective;
+    }
+
+    /**
+     * Set the absolute deadline of the specified thread. Must be called with
+     * interrupts disabled.
+     *
+     * @param	thread		the thread to set the deadline of.
+     * @param	deadline	the time, in ticks, by which the thread should
+     *				be done, or <tt>noDeadline</tt>.
+     */
+    public void setDeadline(KThread thread, long deadline) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	getThreadState(thread).setDeadline(deadline);
+    }
+
+    /**
+     * Set the deadline of the current thread to <i>ticks</i> ticks from now.
+     *
+     * @param	ticks	the number of ticks within which the current thread
+     *			should be done.
+     */
+    public void setRelativeDeadline(long ticks) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	setDeadline(KThread.currentThread(), Machine.timer().getTime() + ticks);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of deadlines that have been missed so far.
+     *
+     * @return	the number of missed deadlines.
+     */
+    public long getDeadlineMisses() {
+	return deadlineMisses;
+    }
+
+    /**
+     * Test deadline inheritance through a chain of locks, using a scheduler
+     * of its own on threads that never run.
+     */
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	EDFScheduler scheduler = new EDFScheduler();
+
+	// a holds lock 0, b waits for it and holds lock 1, and c waits for
+	// lock 1
+	KThread a = new KThread(), b = new KThread(), c = new KThread();
+	ThreadQueue[] locks = { scheduler.newThreadQueue(true),
+				scheduler.newThreadQueue(true) };
+
+	locks[0].acquire(a);
+	locks[1].acquire(b);
+	locks[0].waitForAccess(b);
+	locks[1].waitForAccess(c);
+
+	// c's deadline reaches the end of the chain, and an earlier one in
+	// the middle takes over
+	scheduler.setDeadline(c, 2000);
+	Lib.assertTrue(scheduler.getEffectiveDeadline(a) == 2000);
+	scheduler.setDeadline(b, 1000);
+	Lib.assertTrue(scheduler.getEffectiveDeadline(a) == 1000 &&
+		       scheduler.getEffectiveDeadline(b) == 1000);
+
+	// dropping it lets c's show through again, and a waiter that leaves
+	// takes its deadline with it
+	scheduler.setDeadline(b, noDeadline);
+	Lib.assertTrue(scheduler.getEffectiveDeadline(a) == 2000);
+	Lib.assertTrue(locks[1].remove(c));
+	Lib.assertTrue(scheduler.getEffectiveDeadline(a) == noDeadline &&
+		       scheduler.getEffectiveDeadline(b) == noDeadline);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /** The deadline of a thread that does not have one. */
+    public static final long noDeadline = Long.MAX_VALUE;
+
+    private long deadlineMisses = 0;
+
+    /**
+     * Return the earlier of two deadlines.
+     */
+    protected long combine(long a, long b) {
+	return Math.min(a, b);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that sorts threads by effective deadline. The
+     * waiters are kept in a binary heap with handles, so a thread whose
+     * effective deadline changes is moved in O(log n).
+     */
+    protected class DeadlineQueue extends DonationQueue {
+	DeadlineQueue(boolean transferPriority, boolean readyQueue) {
+	    super(transferPriority);
+	    this.readyQueue = readyQueue;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (readyQueue && thread == KThread.currentThread())
+		getThreadState(thread).checkDeadline();
+
+	    super.waitForAccess(thread);
+	}
+
+	public KThread nextThread() {
+	    KThread thread = super.nextThread();
+	    if (thread != null && readyQueue)
+		getThreadState(thread).checkDeadline();
+
+	    return thread;
+	}
+
+	protected ThreadState pickNextThread() {
+	    return (ThreadState) heap.peek();
+	}
+
+	/**
+	 * Return the earliest effective deadline among the waiting threads,
+	 * or <tt>noDeadline</tt> if this queue does not transfer priority or
+	 * nobody is waiting.
+	 *
+	 * @return	the deadline this queue passes on to its owner.
+	 */
+	public long getDonation() {
+	    if (!transferPriority || heap.size == 0)
+		return noDonation();
+
+	    return heap.peek().effective;
+	}
+
+	protected long noDonation() {
+	    return noDeadline;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<heap.size; i++)
+		System.out.print(heap.heap[i].thread + " ");
+	}
+
+	void enqueue(DonationState state) {
+	    heap.add(state);
+	}
+
+	void dequeue(DonationState state) {
+	    heap.remove(state);
+	}
+
+	void requeue(DonationState state, long oldEffective) {
+	    if (state.heapIndex >= 0)
+		heap.update(state);
+	}
+
+	/** <tt>true</tt> if this is the ready queue, which counts misses. */
+	private boolean readyQueue;
+
+	/** The waiters, earliest effective deadline first. */
+	private WaiterHeap heap = new WaiterHeap() {
+		protected boolean before(DonationState a, DonationState b) {
+		    if (a.effective != b.effective)
+			return a.effective < b.effective;
+		    return a.arrival - b.arrival < 0;
+		}
+	    };
+    }
+
+    /**
+     * The scheduling state of a thread: its deadline, and whether that
+     * deadline has been counted as missed. The effective deadline is kept
+     * up to date by <tt>DonationScheduler</tt>, exactly as priorities are
+     * in <tt>PriorityScheduler</tt>.
+     */
+    protected class ThreadState extends DonationState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    super(thread, noDeadline);
+	}
+
+	/**
+	 * Set the deadline of the associated thread. If the previous deadline
+	 * has already passed, it is counted as missed.
+	 *
+	 * @param	deadline	the new deadline.
+	 */
+	public void setDeadline(long deadline) {
+	    checkDeadline();
+	    missed = false;
+
+	    long oldDeadline = this.deadline;
+	    this.deadline = deadline;
+
+	    propagate(receiveDonation(oldDeadline, deadline));
+	}
+
+	protected long getKey() {
+	    return deadline;
+	}
+
+	/**
+	 * Count the associated thread's deadline as missed if it has passed
+	 * and hasn't been counted yet.
+	 */
+	void checkDeadline() {
+	    if (!missed && deadline != noDeadline &&
+		Machine.timer().getTime() > deadline) {
+		missed = true;
+		deadlineMisses++;
+	    }
+	}
+
+	/** The deadline of the associated thread. */
+	protected long deadline = noDeadline;
+	/** <tt>true</tt> if the current deadline has been counted as missed. */
+	protected boolean missed = false;
+    }
+}
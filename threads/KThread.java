@@ -44,14 +44,14 @@ public class KThread {
      */
     public KThread() {
 	if (currentThread != null) {
-	    tcb = new TCB();
+	    context = ThreadContext.newContext();
 	}	    
 	else {
-	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+	    readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 	    readyQueue.acquire(this);	    
 
 	    currentThread = this;
-	    tcb = TCB.currentTCB();
+	    context = ThreadContext.currentContext();
 	    name = "main";
 	    restoreState();
 
@@ -144,7 +144,7 @@ public class KThread {
 
 	boolean intStatus = Machine.interrupt().disable();
 
-	tcb.start(new Runnable() {
+	context.start(new Runnable() {
 		public void run() {
 		    runThread();
 		}
@@ -245,6 +245,16 @@ public class KThread {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Return <tt>true</tt> if any thread other than the idle thread is
+     * waiting on the ready queue.
+     *
+     * @return	<tt>true</tt> if there are threads ready to run.
+     */
+    public static boolean hasReadyThreads() {
+	return readyThreads > 0;
+    }
+
     /**
      * Relinquish the CPU, because the current thread has either finished or it
      * is blocked. This thread must be the current thread.
@@ -278,8 +288,10 @@ public class KThread {
 	Lib.assertTrue(status != statusReady);
 	
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThread) {
 	    readyQueue.waitForAccess(this);
+	    readyThreads++;
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
@@ -350,18 +362,23 @@ public class KThread {
      * using <tt>run()</tt>.
      */
     private static void runNextThread() {
+	if (ThreadedKernel.alarm != null)
+	    ThreadedKernel.alarm.threadSwitch();
+
 	KThread nextThread = readyQueue.nextThread();
 	if (nextThread == null)
 	    nextThread = idleThread;
+	else
+	    readyThreads--;
 
 	nextThread.run();
     }
 
     /**
      * Dispatch the CPU to this thread. Save the state of the current thread,
-     * switch to the new thread by calling <tt>TCB.contextSwitch()</tt>, and
-     * load the state of the new thread. The new thread becomes the current
-     * thread.
+     * switch to the new thread by calling <tt>contextSwitch()</tt> on its
+     * <tt>ThreadContext</tt>, and load the state of the new thread. The new
+     * thread becomes the current thread.
      *
      * <p>
      * If the new thread and the old thread are the same, this method must
@@ -389,7 +406,7 @@ public class KThread {
 
 	currentThread = this;
 
-	tcb.contextSwitch();
+	context.contextSwitch();
 
 	currentThread.restoreState();
     }
@@ -403,26 +420,30 @@ public class KThread {
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(this == currentThread);
-	Lib.assertTrue(tcb == TCB.currentTCB());
+	Lib.assertTrue(context.isCurrent());
 
 	Machine.autoGrader().runningThread(this);
 	
 	status = statusRunning;
 
+	ThreadedKernel.scheduler.threadDispatched(this);
+
 	if (toBeDestroyed != null) {
-	    toBeDestroyed.tcb.destroy();
-	    toBeDestroyed.tcb = null;
+	    toBeDestroyed.context.destroy();
+	    toBeDestroyed.context = null;
 	    toBeDestroyed = null;
 	}
     }
 
     /**
-     * Prepare this thread to give up the processor. Kernel threads do not
-     * need to do anything here.
+     * Prepare this thread to give up the processor. Kernel threads only need
+     * to let the scheduler know, in case it accounts for CPU time.
      */
     protected void saveState() {
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(this == currentThread);
+
+	ThreadedKernel.scheduler.threadDescheduled(this);
     }
 
     private static class PingTest implements Runnable {
@@ -451,6 +472,74 @@ public class KThread {
 	new PingTest(0).run();
     }
 
+    /**
+     * Measure the thread backend selected by
+     * <tt>ThreadedKernel.threadBackend</tt>: the cost of a context switch,
+     * with two threads yielding to each other, and how many threads can be
+     * blocked at once, up to <tt>ThreadedKernel.benchmarkThreads</tt>.
+     */
+    public static void benchmark() {
+	final int switches = 100000;
+
+	KThread other = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<switches; i++)
+			KThread.yield();
+		}
+	    });
+
+	long start = System.nanoTime();
+	other.fork();
+	for (int i=0; i<switches; i++)
+	    KThread.yield();
+	long elapsed = System.nanoTime() - start;
+
+	System.out.println("KThread (" + ThreadContext.getBackend() + "): "
+			   + elapsed / (2*switches) + " ns per context switch");
+
+	int maxThreads = Config.getInteger("ThreadedKernel.benchmarkThreads",
+					   10000);
+	final Semaphore go = new Semaphore(0);
+	final Semaphore done = new Semaphore(0);
+	Runnable blocker = new Runnable() {
+		public void run() {
+		    go.P();
+		    done.V();
+		}
+	    };
+
+	// fork() disables interrupts before starting the context, so restore
+	// them if starting one fails
+	boolean intStatus = Machine.interrupt().enabled();
+	String limit = "ThreadedKernel.benchmarkThreads";
+	int created = 0;
+	try {
+	    for (; created<maxThreads; created++)
+		new KThread(blocker).fork();
+	}
+	catch (AssertionFailureError e) {
+	    // the machine refuses to start another TCB
+	    Machine.interrupt().restore(intStatus);
+	    limit = "machine limit: " + e.getMessage();
+	}
+	catch (OutOfMemoryError e) {
+	    // the JVM can't create another thread
+	    Machine.interrupt().restore(intStatus);
+	    limit = "out of memory: " + e.getMessage();
+	}
+
+	// let every thread block, then release them all
+	KThread.yield();
+	for (int i=0; i<created; i++)
+	    go.V();
+	for (int i=0; i<created; i++)
+	    done.P();
+
+	System.out.println("KThread (" + ThreadContext.getBackend() + "): "
+			   + created + " threads blocked at once ("
+			   + limit + ")");
+    }
+
     private static final char dbgThread = 't';
 
     /**
@@ -460,6 +549,30 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    /**
+     * The logical CPU whose run queue this thread uses, or -1 if it has
+     * not been placed yet. Only <tt>SMPScheduler</tt> uses this.
+     */
+    int cpu = -1;
+
+    /**
+     * The node this thread waits on in a <tt>Condition</tt>. It is allocated
+     * the first time the thread waits on one and reused after that.
+     */
+    Condition.Waiter waiter = null;
+
+    /**
+     * The node this thread waits on in a <tt>Communicator</tt>, allocated the
+     * first time it speaks or listens there and reused after that.
+     */
+    Communicator.Waiter communicatorWaiter = null;
+
+    /**
+     * The number of permits this thread is waiting for in
+     * <tt>Semaphore.P()</tt>.
+     */
+    int permitsWanted = 0;
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
@@ -474,7 +587,7 @@ public class KThread {
     private int status = statusNew;
     private String name = "(unnamed thread)";
     private Runnable target;
-    private TCB tcb;
+    private ThreadContext context;
 
     /**
      * Unique identifer for this thread. Used to deterministically compare
@@ -485,6 +598,8 @@ public class KThread {
     private static int numCreated = 0;
 
     private static ThreadQueue readyQueue = null;
+    /** The number of threads waiting on the ready queue. */
+    private static int readyThreads = 0;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
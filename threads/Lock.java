@@ -18,12 +18,39 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * While nobody is waiting, <tt>acquire()</tt> and <tt>release()</tt> don't
+ * touch the scheduler's wait queue at all. The queue is only told who holds
+ * the lock when a thread first has to wait for it, which is when priority
+ * donation starts to matter.
  */
 public class Lock {
     /**
-     * Allocate a new lock. The lock will initially be <i>free</i>.
+     * Allocate a new lock. The lock will initially be <i>free</i>, and will be
+     * handed directly to the next waiting thread when it is released.
      */
     public Lock() {
+	this(true);
+    }
+
+    /**
+     * Allocate a new lock. The lock will initially be <i>free</i>.
+     *
+     * <p>
+     * If <i>handoff</i> is <tt>true</tt>, <tt>release()</tt> makes the next
+     * waiting thread the lock holder before it even runs, so waiters are
+     * served strictly in the order the scheduler chooses. Otherwise the
+     * lock is <i>barging</i>: <tt>release()</tt> leaves the lock
+     * <i>free</i> and only wakes the next waiter, which must compete for
+     * the lock again when it runs. A running thread can then take the lock
+     * straight back, which saves context switches at the cost of fairness.
+     *
+     * @param	handoff	<tt>true</tt> to hand the lock to the next waiter,
+     *			<tt>false</tt> to let threads barge.
+     */
+    public Lock(boolean handoff) {
+	this.handoff = handoff;
     }
 
     /**
@@ -36,18 +63,55 @@ public class Lock {
 	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
 
-	if (lockHolder != null) {
-	    waitQueue.waitForAccess(thread);
-	    KThread.sleep();
+	while (lockHolder != thread) {
+	    if (lockHolder == null) {
+		take(thread);
+	    }
+	    else {
+		enqueue(thread);
+		KThread.sleep();
+	    }
 	}
-	else {
-	    waitQueue.acquire(thread);
-	    lockHolder = thread;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock, waiting at most <i>ticks</i> clock ticks
+     * for it to become <i>free</i>. If <i>ticks</i> is not positive, don't
+     * wait at all. A thread that gives up stops donating its priority to the
+     * lock holder. The current thread must not already hold this lock.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the current thread acquired the lock.
+     */
+    public boolean tryAcquire(long ticks) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+	long deadline = Machine.timer().getTime() + ticks;
+
+	while (lockHolder != thread) {
+	    long remaining = deadline - Machine.timer().getTime();
+
+	    if (lockHolder == null) {
+		take(thread);
+	    }
+	    else if (remaining <= 0) {
+		break;
+	    }
+	    else {
+		enqueue(thread);
+		if (!ThreadedKernel.alarm.waitUntil(remaining, waitQueue))
+		    break;
+	    }
 	}
 
-	Lib.assertTrue(lockHolder == thread);
+	boolean acquired = (lockHolder == thread);
 
 	Machine.interrupt().restore(intStatus);
+	return acquired;
     }
 
     /**
@@ -58,9 +122,19 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
-	if ((lockHolder = waitQueue.nextThread()) != null)
-	    lockHolder.ready();
-	
+	// only ask the queue for a waiter if someone has waited since the last
+	// time it was found empty
+	KThread thread = queueOwned ? waitQueue.nextThread() : null;
+
+	if (thread == null) {
+	    lockHolder = null;
+	    queueOwned = false;
+	}
+	else {
+	    lockHolder = handoff ? thread : null;
+	    thread.ready();
+	}
+
 	Machine.interrupt().restore(intStatus);
     }
 
@@ -73,7 +147,135 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Release this lock completely, so that a condition variable can sleep.
+     * A subclass that can be acquired more than once releases every hold.
+     *
+     * @return	the number of holds to give back to <tt>reacquire()</tt>.
+     */
+    int releaseAll() {
+	release();
+	return 1;
+    }
+
+    /**
+     * Reacquire this lock after <tt>releaseAll()</tt>.
+     *
+     * @param	holds	what <tt>releaseAll()</tt> returned.
+     */
+    void reacquire(int holds) {
+	Lib.assertTrue(holds == 1);
+	acquire();
+    }
+
+    /**
+     * Make <i>thread</i> the lock holder. The wait queue only needs to be
+     * told if it already knows of a holder, which it does only while there
+     * is contention.
+     */
+    private void take(KThread thread) {
+	lockHolder = thread;
+	if (queueOwned)
+	    waitQueue.acquire(thread);
+    }
+
+    /**
+     * Add <i>thread</i> to the wait queue. The first waiter tells the queue
+     * who holds the lock, so that it has someone to donate priority to.
+     */
+    private void enqueue(KThread thread) {
+	if (!queueOwned) {
+	    waitQueue.acquire(lockHolder);
+	    queueOwned = true;
+	}
+
+	waitQueue.waitForAccess(thread);
+    }
+
+    /**
+     * Simulate <i>n</i> units of work, each of which lets the clock advance
+     * and the timer preempt the current thread.
+     */
+    private static void work(int n) {
+	for (int i=0; i<n; i++)
+	    Machine.interrupt().restore(Machine.interrupt().disable());
+    }
+
+    private static class ContentionTest implements Runnable {
+	ContentionTest(Lock lock, int iterations, Semaphore done) {
+	    this.lock = lock;
+	    this.iterations = iterations;
+	    this.done = done;
+	}
+
+	public void run() {
+	    for (int i=0; i<iterations; i++) {
+		lock.acquire();
+		work(criticalWork);
+		lock.release();
+		work(otherWork);
+	    }
+	    done.V();
+	}
+
+	private Lock lock;
+	private int iterations;
+	private Semaphore done;
+    }
+
+    /** Units of work done inside and outside the lock by each contender. */
+    private static final int criticalWork = 4, otherWork = 4;
+
+    /**
+     * Measure the cost of an acquire and release, for a lock nobody else
+     * wants and for one that several threads are fighting over, under both
+     * policies. Contenders are preempted by the timer, so some are preempted
+     * while holding the lock and the others pile up behind them.
+     */
+    public static void benchmark() {
+	final int iterations = 100000;
+	final int contenders = 4;
+
+	for (int policy=0; policy<2; policy++) {
+	    boolean handoff = (policy == 0);
+	    String name = "Lock (" + (handoff ? "handoff" : "barging") + "): ";
+
+	    Lock lock = new Lock(handoff);
+	    long elapsed = 0;
+	    // the first pass warms up the JIT
+	    for (int pass=0; pass<2; pass++) {
+		long start = System.nanoTime();
+		for (int i=0; i<iterations; i++) {
+		    lock.acquire();
+		    lock.release();
+		}
+		elapsed = System.nanoTime() - start;
+	    }
+
+	    System.out.println(name + elapsed / iterations
+			       + " ns per uncontended acquire and release");
+
+	    Semaphore done = new Semaphore(0);
+	    int perThread = iterations / 10;
+	    long start = System.nanoTime();
+	    for (int i=0; i<contenders; i++)
+		new KThread(new ContentionTest(lock, perThread, done)).fork();
+	    for (int i=0; i<contenders; i++)
+		done.P();
+	    elapsed = System.nanoTime() - start;
+
+	    System.out.println(name + elapsed / (perThread*contenders)
+			       + " ns per contended acquire and release");
+	}
+    }
+
     private KThread lockHolder = null;
+    private boolean handoff;
+    /**
+     * <tt>true</tt> if <tt>waitQueue</tt> has been told the lock holder,
+     * because a thread has waited since the queue was last found empty.
+     */
+    private boolean queueOwned = false;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
 }
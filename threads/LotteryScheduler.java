@@ -5,6 +5,7 @@ import nachos.machine.*;
 import java.util.TreeSet;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Arrays;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -28,11 +29,16 @@ import java.util.Iterator;
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
-     * Allocate a new lottery scheduler.
+     * Allocate a new lottery scheduler. A thread's priority is its number of
+     * tickets, which can be anything from <tt>1</tt> to
+     * <tt>Integer.MAX_VALUE</tt>.
      */
     public LotteryScheduler() {
+	priorityDefault = 1;
+	priorityMin = 1;
+	priorityMaximum = Integer.MAX_VALUE;
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +48,204 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiters.
+     *
+     * <p>
+     * Waiters occupy consecutive slots of a Fenwick tree that stores their
+     * effective ticket counts, so the total is always at hand and the slot
+     * holding any given ticket is found by a single descent of the tree. A
+     * draw, an insertion, a removal and a change of one waiter's tickets
+     * all cost O(log n) in the number of waiters, independent of how many
+     * tickets there are. When a waiter leaves, the last slot is moved into
+     * the hole, which keeps the slots dense without a free list.
+     */
+    protected class LotteryQueue extends PriorityQueue {
+	LotteryQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads and return the winner.
+	 *
+	 * @return	the thread holding the winning ticket, or <tt>null</tt>
+	 *		if nobody is waiting.
+	 */
+	protected ThreadState pickNextThread() {
+	    if (count == 0)
+		return null;
+
+	    long total = prefixSum(count);
+	    long winner = Math.min((long) (Lib.random() * total), total-1);
+
+	    return slots[findSlot(winner)];
+	}
+
+	/**
+	 * Return the total effective tickets of the waiting threads, or 0 if
+	 * this queue does not transfer tickets.
+	 *
+	 * @return	the tickets this queue donates to its owner.
+	 */
+	public long getDonation() {
+	    if (!transferPriority || count == 0)
+		return noDonation();
+
+	    return prefixSum(count);
+	}
+
+	protected long noDonation() {
+	    return 0;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<count; i++)
+		System.out.print(slots[i].thread + " ");
+	}
+
+	void enqueue(DonationState state) {
+	    if (slots == null) {
+		slots = new ThreadState[4];
+		tree = new long[5];
+	    }
+	    else if (count == slots.length) {
+		grow();
+	    }
+
+	    state.heapIndex = count;
+	    slots[count++] = (ThreadState) state;
+	    add(state.heapIndex, state.effective);
+	}
+
+	void dequeue(DonationState state) {
+	    int slot = state.heapIndex;
+	    ThreadState last = slots[--count];
+
+	    add(slot, -state.effective);
+	    if (last != state) {
+		add(count, -last.effective);
+		add(slot, last.effective);
+		slots[slot] = last;
+		last.heapIndex = slot;
+	    }
+
+	    slots[count] = null;
+	    state.heapIndex = -1;
+	}
+
+	void requeue(DonationState state, long oldEffective) {
+	    if (state.heapIndex < 0)
+		return;
+
+	    add(state.heapIndex, state.effective - oldEffective);
+	}
+
+	/**
+	 * Double the number of slots. A Fenwick tree can't simply be copied
+	 * into a larger array, so it is rebuilt, in linear time.
+	 */
+	private void grow() {
+	    slots = Arrays.copyOf(slots, slots.length*2);
+	    tree = new long[slots.length+1];
+	    for (int i=0; i<count; i++) {
+		tree[i+1] += slots[i].effective;
+		int parent = (i+1) + ((i+1) & -(i+1));
+		if (parent < tree.length)
+		    tree[parent] += tree[i+1];
+	    }
+	}
+
+	/** Add <i>delta</i> tickets to slot <i>slot</i>. */
+	private void add(int slot, long delta) {
+	    for (int i=slot+1; i<tree.length; i+=i&-i)
+		tree[i] += delta;
+	}
+
+	/** Return the tickets held by the first <i>n</i> slots. */
+	private long prefixSum(int n) {
+	    long sum = 0;
+	    for (int i=n; i>0; i-=i&-i)
+		sum += tree[i];
+	    return sum;
+	}
+
+	/**
+	 * Return the slot that holds ticket number <i>ticket</i>, counting
+	 * from 0 across the slots in order.
+	 */
+	private int findSlot(long ticket) {
+	    int slot = 0;
+	    for (int step=Integer.highestOneBit(tree.length-1); step>0;
+		 step>>=1) {
+		if (slot+step < tree.length && tree[slot+step] <= ticket) {
+		    slot += step;
+		    ticket -= tree[slot];
+		}
+	    }
+	    return slot;
+	}
+
+	/** The waiting threads, in slots <tt>0</tt> to <tt>count-1</tt>. */
+	private ThreadState[] slots = null;
+	/** The Fenwick tree over the slots' tickets, indexed from 1. */
+	private long[] tree = null;
+	private int count = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in a lottery scheduler. Its effective
+     * priority is the sum of its own tickets and the tickets donated by
+     * every queue it owns, so a change in a donation simply adds the
+     * difference. The sum is kept exactly; only
+     * <tt>getEffectivePriority()</tt> saturates it at
+     * <tt>Integer.MAX_VALUE</tt>.
+     */
+    protected class LotteryThreadState extends ThreadState {
+	/**
+	 * Allocate a new <tt>LotteryThreadState</tt> object and associate it
+	 * with the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	public int getEffectivePriority() {
+	    return (int) Math.min(effective, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Add the change in one donation to the effective ticket count.
+	 */
+	protected long receiveDonation(long oldDonation, long newDonation) {
+	    return effective + newDonation - oldDonation;
+	}
+
+	protected long computeEffective() {
+	    long value = priority;
+	    for (DonationQueue q=resources; q!=null; q=q.nextResource)
+		value += q.getDonation();
+
+	    return value;
+	}
     }
 }
@@ -0,0 +1,331 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Threads are kept at one of several levels, level <tt>0</tt> being the
+ * highest. The next thread to be dequeued is always the one that has been
+ * waiting longest at the highest occupied level. Nobody sets the levels;
+ * they are learned from how threads behave:
+ *
+ * <ul>
+ * <li>A new thread starts at level <tt>0</tt>.
+ * <li>A thread that is preempted by the timer, in
+ * <tt>Alarm.timerInterrupt()</tt>, has used a whole time slice. After it has
+ * done so <tt>MLFQScheduler.allotment</tt> times at its level, it moves down
+ * a level.
+ * <li>A thread that blocks, on a <tt>Lock</tt>, a <tt>Condition</tt>, in
+ * <tt>Alarm.waitUntil()</tt> or anywhere else, moves up a level when it is
+ * woken.
+ * <li>Every <tt>MLFQScheduler.boostInterval</tt> ticks every thread moves
+ * back to level <tt>0</tt>, so CPU-bound threads can't starve and a thread
+ * that turns interactive is noticed.
+ * </ul>
+ *
+ * <p>
+ * The number of levels is set by <tt>MLFQScheduler.levels</tt>. Levels are
+ * not donated, so the <tt>transferPriority</tt> flag of a queue is ignored.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler, configured by the
+     * <tt>MLFQScheduler.levels</tt>, <tt>MLFQScheduler.allotment</tt> and
+     * <tt>MLFQScheduler.boostInterval</tt> keys.
+     */
+    public MLFQScheduler() {
+	levels = Config.getInteger("MLFQScheduler.levels", 4);
+	allotment = Config.getInteger("MLFQScheduler.allotment", 1);
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 10000);
+	Lib.assertTrue(levels >= 1 && levels <= maxLevels);
+	Lib.assertTrue(allotment >= 1 && boostInterval >= 0);
+    }
+
+    /**
+     * Allocate a new multi-level thread queue.
+     *
+     * @param	transferPriority	ignored. Levels are not donated.
+     * @return	a new multi-level thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MultiLevelQueue();
+    }
+
+    /**
+     * Return the level of the specified thread, <tt>0</tt> being the highest.
+     * Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread to get the level of.
+     * @return	the thread's current level.
+     */
+    public int getLevel(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getLevel();
+    }
+
+    /**
+     * Charge the current thread for a full time slice, and move it down a
+     * level once it has used up its allotment at its level.
+     */
+    public void threadPreempted(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	state.getLevel();
+	if (++state.slices >= allotment) {
+	    state.slices = 0;
+	    if (state.level < levels-1)
+		state.level++;
+	}
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Return the number of boosts so far. A thread or queue that last looked
+     * at the levels in an earlier epoch has been boosted since.
+     */
+    private long boostEpoch() {
+	if (boostInterval == 0)
+	    return 0;
+
+	return Machine.timer().getTime() / boostInterval;
+    }
+
+    /** The most levels a queue can have; one bit each in a mask. */
+    private static final int maxLevels = 32;
+
+    private int levels;
+    private int allotment;
+    private long boostInterval;
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO list per level. The lists are
+     * linked through the waiting threads' <tt>ThreadState</tt>s, and a bit
+     * mask records which of them are non-empty, so every operation takes
+     * constant time. A boost appends every list to level <tt>0</tt> in
+     * order, which is also constant time per level.
+     */
+    protected class MultiLevelQueue extends ThreadQueue {
+	MultiLevelQueue() {
+	    head = new ThreadState[levels];
+	    tail = new ThreadState[levels];
+	}
+
+	/**
+	 * Add a thread to the end of the list for its level. A thread that is
+	 * not the current thread is being woken up after blocking, and moves
+	 * up a level first.
+	 *
+	 * @param	thread	the thread to append to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (thread != KThread.currentThread() && state.getLevel() > 0) {
+		state.level--;
+		state.slices = 0;
+	    }
+
+	    boost();
+
+	    int level = state.getLevel();
+	    if (tail[level] == null)
+		head[level] = state;
+	    else
+		tail[level].next = state;
+	    state.prev = tail[level];
+	    state.next = null;
+	    tail[level] = state;
+	    occupied |= 1 << level;
+	    state.waitQueue = this;
+	}
+
+	/**
+	 * Remove the first thread of the highest occupied level.
+	 *
+	 * @return	the first thread of the highest occupied level, or
+	 *		<tt>null</tt> if the queue is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    boost();
+
+	    if (occupied == 0)
+		return null;
+
+	    int level = Integer.numberOfTrailingZeros(occupied);
+	    ThreadState state = head[level];
+	    unlink(state, level);
+
+	    return state.thread;
+	}
+
+	/**
+	 * Remove a thread from the list it is on. The thread's own level may
+	 * be out of date if there has been a boost, so its list is found by
+	 * checking the ends of each list, which is constant time per level.
+	 *
+	 * @param	thread	the thread to remove.
+	 * @return	<tt>true</tt> if the thread was in the queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitQueue != this)
+		return false;
+
+	    int level = 0;
+	    if (state.prev == null) {
+		while (head[level] != state)
+		    level++;
+	    }
+	    else if (state.next == null) {
+		while (tail[level] != state)
+		    level++;
+	    }
+	    unlink(state, level);
+
+	    return true;
+	}
+
+	/**
+	 * The specified thread has received access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Levels are not
+	 * donated, so there is nothing to do.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Print out the contents of the queue, highest level first.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int level=0; level<levels; level++) {
+		for (ThreadState s=head[level]; s!=null; s=s.next)
+		    System.out.print(s.thread + " ");
+	    }
+	}
+
+	/**
+	 * Unlink a thread from its list. <i>level</i> only matters if the
+	 * thread is at either end of the list.
+	 */
+	private void unlink(ThreadState state, int level) {
+	    if (state.prev == null)
+		head[level] = state.next;
+	    else
+		state.prev.next = state.next;
+	    if (state.next == null)
+		tail[level] = state.prev;
+	    else
+		state.next.prev = state.prev;
+
+	    if (head[level] == null)
+		occupied &= ~(1 << level);
+
+	    state.prev = state.next = null;
+	    state.waitQueue = null;
+	}
+
+	/**
+	 * If there has been a boost since this queue last looked, move every
+	 * waiting thread to level <tt>0</tt>, keeping the order they would
+	 * have been chosen in.
+	 */
+	private void boost() {
+	    long epoch = boostEpoch();
+	    if (epoch == this.epoch)
+		return;
+	    this.epoch = epoch;
+
+	    for (int level=1; level<levels; level++) {
+		if (head[level] == null)
+		    continue;
+
+		if (tail[0] == null)
+		    head[0] = head[level];
+		else
+		    tail[0].next = head[level];
+		head[level].prev = tail[0];
+		tail[0] = tail[level];
+		head[level] = tail[level] = null;
+	    }
+	    if (occupied != 0)
+		occupied = 1;
+	}
+
+	private ThreadState[] head, tail;
+	/** Bit <i>i</i> is set if level <i>i</i> has waiting threads. */
+	private int occupied = 0;
+	/** The boost epoch this queue last looked at. */
+	private long epoch = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, how many time slices it
+     * has used at that level, and its links in the queue it waits on.
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.epoch = boostEpoch();
+	}
+
+	/**
+	 * Return the level of the associated thread, first moving it to level
+	 * <tt>0</tt> if there has been a boost since it last looked.
+	 *
+	 * @return	the level of the associated thread.
+	 */
+	public int getLevel() {
+	    long epoch = boostEpoch();
+	    if (epoch != this.epoch) {
+		this.epoch = epoch;
+		level = 0;
+		slices = 0;
+	    }
+
+	    return level;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level of the associated thread, as of <tt>epoch</tt>. */
+	protected int level = 0;
+	/** The time slices used at the current level. */
+	protected int slices = 0;
+	/** The boost epoch in which <tt>level</tt> was last updated. */
+	protected long epoch;
+	/** The queue this thread is waiting on, if any. */
+	protected MultiLevelQueue waitQueue = null;
+	/** The neighbouring threads at the same level of the same queue. */
+	protected ThreadState prev = null, next = null;
+    }
+}
@@ -0,0 +1,342 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashSet;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that can be held either by any number of
+ * <i>readers</i> at once or by a single <i>writer</i>:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: atomically wait until no writer holds the lock
+ * and no writer is waiting for it, then join the readers holding it.
+ * <li><tt>acquireWrite()</tt>: atomically wait until nobody holds the lock,
+ * then hold it alone.
+ * <li><tt>releaseRead()</tt> and <tt>releaseWrite()</tt>: give the lock up,
+ * handing it to waiting threads if possible.
+ * </ul>
+ *
+ * <p>
+ * A reader that arrives while a writer is waiting waits behind it, so a
+ * stream of readers can't starve writers. The policy only differs in what
+ * happens when a writer releases the lock while both readers and writers are
+ * waiting. With <i>writer preference</i>, the default, the next writer gets
+ * it, so readers wait until no writer is left. In <i>fair</i> mode all the
+ * waiting readers get it, and the next writer follows once they are done, so
+ * readers and writers take turns.
+ *
+ * <p>
+ * Waiting threads donate priority to the threads they wait for. Both wait
+ * queues are acquired by the writer holding the lock, or shared by all the
+ * readers holding it, so a blocked writer donates to every reader it is
+ * waiting for until the last one is done.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new reader-writer lock with writer preference. The lock will
+     * initially be free.
+     */
+    public ReadWriteLock() {
+	this(false);
+    }
+
+    /**
+     * Allocate a new reader-writer lock. The lock will initially be free.
+     *
+     * @param	fair	<tt>true</tt> to let readers and writers take turns,
+     *			<tt>false</tt> to prefer writers.
+     */
+    public ReadWriteLock(boolean fair) {
+	this.fair = fair;
+    }
+
+    /**
+     * Atomically acquire this lock for reading. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(writer != thread && !readers.contains(thread));
+
+	if (writer == null && waitingWriters == 0) {
+	    readers.add(thread);
+	    share(thread);
+	}
+	else {
+	    waitingReaders++;
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(readers.contains(thread));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * reading.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(readers.remove(thread));
+	writeQueue.releaseShared(thread);
+	readQueue.releaseShared(thread);
+
+	if (readers.isEmpty()) {
+	    if (waitingWriters > 0)
+		grantWrite();
+	    else
+		free();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock for writing. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireWrite() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(writer != thread && !readers.contains(thread));
+
+	if (writer == null && readers.isEmpty()) {
+	    writer = thread;
+	    writeQueue.acquire(thread);
+	    readQueue.acquire(thread);
+	}
+	else {
+	    waitingWriters++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * writing.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+
+	if (waitingWriters > 0 && (!fair || waitingReaders == 0))
+	    grantWrite();
+	else if (waitingReaders > 0)
+	    grantRead();
+	else
+	    free();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock for reading.
+     *
+     * @return	true if the current thread holds this lock for reading.
+     */
+    public boolean isReadHeldByCurrentThread() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean held = readers.contains(KThread.currentThread());
+
+	Machine.interrupt().restore(intStatus);
+	return held;
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Test the release policies and the donation of a blocked writer to the
+     * readers holding the lock.
+     */
+    public static void selfTest() {
+	// with writer preference the waiting writers go first; in fair mode
+	// the waiting readers do
+	Lib.assertTrue(releaseOrder(false).equals("wwrr"));
+	Lib.assertTrue(releaseOrder(true).equals("rrww"));
+
+	// a blocked writer donates to every reader holding the lock, the one
+	// that got it first and the one that joined it, until each is done
+	final ReadWriteLock lock = new ReadWriteLock();
+	final Semaphore hold = new Semaphore(0);
+	KThread current = KThread.currentThread();
+
+	lock.acquireRead();
+
+	KThread reader = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireRead();
+		    hold.P();
+		    lock.releaseRead();
+		}
+	    }).setName("reader");
+	reader.fork();
+	ThreadedKernel.alarm.waitUntil(100);
+
+	KThread writer = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquireWrite();
+		    lock.releaseWrite();
+		}
+	    }).setName("writer");
+
+	boolean donates = (ThreadedKernel.scheduler instanceof PriorityScheduler);
+	boolean intStatus = Machine.interrupt().disable();
+	int priority = ThreadedKernel.scheduler.getEffectivePriority(current);
+	int writerPriority = ThreadedKernel.scheduler.getPriority(current) + 1;
+	if (donates)
+	    ThreadedKernel.scheduler.setPriority(writer, writerPriority);
+	Machine.interrupt().restore(intStatus);
+
+	writer.fork();
+	ThreadedKernel.alarm.waitUntil(100);
+
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(!donates ||
+		       ThreadedKernel.scheduler.getEffectivePriority(current) >=
+		       writerPriority);
+	Lib.assertTrue(!donates ||
+		       ThreadedKernel.scheduler.getEffectivePriority(reader) >=
+		       writerPriority);
+	Machine.interrupt().restore(intStatus);
+
+	lock.releaseRead();
+
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(current) ==
+		       priority);
+	Lib.assertTrue(!donates ||
+		       ThreadedKernel.scheduler.getEffectivePriority(reader) >=
+		       writerPriority);
+	Machine.interrupt().restore(intStatus);
+
+	hold.V();
+	reader.join();
+	writer.join();
+    }
+
+    /**
+     * Hold a lock for writing while two readers and two writers queue up,
+     * then release it and return the order in which they got the lock.
+     */
+    private static String releaseOrder(boolean fair) {
+	final ReadWriteLock lock = new ReadWriteLock(fair);
+	final StringBuffer order = new StringBuffer();
+	KThread[] threads = new KThread[4];
+
+	lock.acquireWrite();
+
+	for (int i=0; i<threads.length; i++) {
+	    final boolean reads = (i%2 == 0);
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			if (reads) {
+			    lock.acquireRead();
+			    order.append('r');
+			    lock.releaseRead();
+			}
+			else {
+			    lock.acquireWrite();
+			    order.append('w');
+			    lock.releaseWrite();
+			}
+		    }
+		}).setName(i%2 == 0 ? "reader" : "writer");
+	    threads[i].fork();
+	}
+
+	// let every thread block on the lock
+	ThreadedKernel.alarm.waitUntil(100);
+	lock.releaseWrite();
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	return order.toString();
+    }
+
+    /**
+     * Hand the lock to the next waiting writer.
+     */
+    private void grantWrite() {
+	writer = writeQueue.nextThread();
+	waitingWriters--;
+
+	readQueue.acquire(writer);
+	writer.ready();
+    }
+
+    /**
+     * Hand the lock to every waiting reader. The read queue is emptied
+     * before anyone shares it, since handing it to a waiting reader ends
+     * all sharing.
+     */
+    private void grantRead() {
+	KThread thread;
+	while ((thread = readQueue.nextThread()) != null)
+	    readers.add(thread);
+	waitingReaders = 0;
+
+	for (KThread reader : readers) {
+	    share(reader);
+	    reader.ready();
+	}
+    }
+
+    /**
+     * Leave the lock free. Nobody is waiting, so asking the queues for the
+     * next thread just makes them forget who had access.
+     */
+    private void free() {
+	Lib.assertTrue(writeQueue.nextThread() == null);
+	Lib.assertTrue(readQueue.nextThread() == null);
+    }
+
+    /**
+     * Let <i>thread</i>, a reader that now holds the lock, share both wait
+     * queues, so that waiting threads donate to it.
+     */
+    private void share(KThread thread) {
+	writeQueue.acquireShared(thread);
+	readQueue.acquireShared(thread);
+    }
+
+    private boolean fair;
+
+    /** The writer holding the lock, or <tt>null</tt>. */
+    private KThread writer = null;
+    /**
+     * The readers holding the lock. <tt>KThread</tt> keeps identity equality,
+     * so testing and removing a reader costs O(1) however many there are.
+     */
+    private HashSet<KThread> readers = new HashSet<KThread>();
+
+    private int waitingReaders = 0, waitingWriters = 0;
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
@@ -0,0 +1,170 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>Lock</tt> that the thread holding it may acquire again. The lock
+ * counts how many times its holder has acquired it, and only becomes
+ * <i>free</i> once the holder has released it that many times.
+ *
+ * <p>
+ * Acquiring a lock the current thread already holds only increments the
+ * count: it doesn't disable interrupts or touch the wait queue, since no
+ * other thread can change the holder. The holder keeps the lock, and any
+ * priority donated to it through the lock's wait queue, until its last
+ * release.
+ *
+ * <p>
+ * A <tt>ReentrantLock</tt> can be used with <tt>Condition</tt> and
+ * <tt>Condition2</tt>. Sleeping on a condition releases every hold, and
+ * waking restores them all.
+ */
+public class ReentrantLock extends Lock {
+    /**
+     * Allocate a new reentrant lock that is handed directly to the next
+     * waiting thread when it is released.
+     */
+    public ReentrantLock() {
+	super();
+    }
+
+    /**
+     * Allocate a new reentrant lock.
+     *
+     * @param	handoff	<tt>true</tt> to hand the lock to the next waiter,
+     *			<tt>false</tt> to let threads barge.
+     *
+     * @see	nachos.threads.Lock#Lock(boolean)
+     */
+    public ReentrantLock(boolean handoff) {
+	super(handoff);
+    }
+
+    /**
+     * Acquire this lock, or acquire it once more if the current thread
+     * already holds it.
+     */
+    public void acquire() {
+	if (isHeldByCurrentThread()) {
+	    holds++;
+	    return;
+	}
+
+	super.acquire();
+	holds = 1;
+    }
+
+    /**
+     * Acquire this lock, waiting at most <i>ticks</i> clock ticks for it to
+     * become <i>free</i>, or acquire it once more if the current thread
+     * already holds it.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the current thread acquired the lock.
+     */
+    public boolean tryAcquire(long ticks) {
+	if (isHeldByCurrentThread()) {
+	    holds++;
+	    return true;
+	}
+
+	if (!super.tryAcquire(ticks))
+	    return false;
+
+	holds = 1;
+	return true;
+    }
+
+    /**
+     * Release one hold on this lock, and make it <i>free</i> if that was the
+     * last one. The current thread must hold this lock.
+     */
+    public void release() {
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	if (--holds == 0)
+	    super.release();
+    }
+
+    /**
+     * Return how many times the current thread has acquired this lock
+     * without releasing it.
+     *
+     * @return	the current thread's hold count, or <tt>0</tt> if it doesn't
+     *		hold this lock.
+     */
+    public int getHoldCount() {
+	return isHeldByCurrentThread() ? holds : 0;
+    }
+
+    /**
+     * Test that a thread sleeping on a condition variable gives up every
+     * hold on the lock, and gets them all back when it wakes, for both
+     * <tt>Condition</tt> and <tt>Condition2</tt>.
+     */
+    public static void selfTest() {
+	final ReentrantLock lock = new ReentrantLock();
+	final Condition condition = new Condition(lock);
+	final Condition2 condition2 = new Condition2(lock);
+
+	for (int i=0; i<2; i++) {
+	    final boolean useCondition2 = (i == 1);
+
+	    lock.acquire();
+	    lock.acquire();
+	    lock.acquire();
+
+	    // the waker can only get the lock if every hold was released
+	    KThread waker = new KThread(new Runnable() {
+		    public void run() {
+			lock.acquire();
+			Lib.assertTrue(lock.getHoldCount() == 1);
+			if (useCondition2)
+			    condition2.wake();
+			else
+			    condition.wake();
+			lock.release();
+		    }
+		}).setName("waker");
+	    waker.fork();
+
+	    if (useCondition2)
+		condition2.sleep();
+	    else
+		condition.sleep();
+	    Lib.assertTrue(lock.getHoldCount() == 3);
+
+	    // the same goes for a timed sleep that runs out
+	    boolean woken = useCondition2 ? condition2.sleepFor(100)
+		: condition.sleepFor(100);
+	    Lib.assertTrue(!woken && lock.getHoldCount() == 3);
+
+	    lock.release();
+	    lock.release();
+	    Lib.assertTrue(lock.getHoldCount() == 1);
+	    lock.release();
+	    Lib.assertTrue(!lock.isHeldByCurrentThread());
+
+	    waker.join();
+	}
+    }
+
+    int releaseAll() {
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	int released = holds;
+	holds = 0;
+	super.release();
+	return released;
+    }
+
+    void reacquire(int holds) {
+	Lib.assertTrue(holds >= 1);
+
+	super.acquire();
+	this.holds = holds;
+    }
+
+    /** The number of holds of the lock holder. */
+    private int holds = 0;
+}
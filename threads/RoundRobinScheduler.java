@@ -60,13 +60,23 @@ public class RoundRobinScheduler extends Scheduler {
 
 	/**
 	 * The specified thread has received exclusive access, without using
-	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
-	 * threads are waiting for access.
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Other threads
+	 * may still be waiting, for example on a barging lock, so there is
+	 * nothing to do.
 	 */
 	public void acquire(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-		       
-	    Lib.assertTrue(waitQueue.isEmpty());
+	}
+
+	/**
+	 * Remove a thread from wherever it is in the queue.
+	 *
+	 * @param	thread	the thread to remove.
+	 * @return	<tt>true</tt> if the thread was in the queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    return waitQueue.remove(thread);
 	}
 
 	/**
@@ -0,0 +1,359 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that simulates a multiprocessor with several logical CPUs,
+ * each with its own run queue.
+ *
+ * <p>
+ * The ordering policy is delegated to another scheduler, named by the
+ * <tt>SMPScheduler.scheduler</tt> key, which provides every queue; this
+ * class only replaces the ready queue with <tt>SMPScheduler.cpus</tt> run
+ * queues of that scheduler. A thread stays on the run queue of the CPU it
+ * last ran on. A new thread goes to the least loaded CPU, and a CPU whose
+ * run queue is empty steals a thread from the busiest one, if that CPU has
+ * more than one thread waiting.
+ *
+ * <p>
+ * The logical CPUs are time-multiplexed on Nachos's single processor: each
+ * time a thread is to be dispatched, the next CPU in turn that has work, or
+ * can steal some, dispatches from its run queue. Since only one logical CPU
+ * is ever executing, disabling interrupts still makes a section atomic with
+ * respect to all of them, and <tt>Lock</tt>, <tt>Semaphore</tt> and the
+ * schedulers need no spinlocks. The scheduler records how many ticks each
+ * CPU spent running threads, so that the balance of a workload across CPUs,
+ * and the speedup it could get from them, can be measured.
+ */
+public class SMPScheduler extends Scheduler {
+    /**
+     * Allocate a new SMP scheduler, configured by the
+     * <tt>SMPScheduler.cpus</tt> and <tt>SMPScheduler.scheduler</tt> keys.
+     */
+    public SMPScheduler() {
+	this(newScheduler(), Config.getInteger("SMPScheduler.cpus", 2));
+    }
+
+    /**
+     * Allocate a new SMP scheduler with <i>cpus</i> logical CPUs, whose
+     * queues are provided by <i>scheduler</i>.
+     */
+    SMPScheduler(Scheduler scheduler, int cpus) {
+	Lib.assertTrue(cpus >= 1);
+
+	this.scheduler = scheduler;
+	this.cpus = cpus;
+
+	busyTicks = new long[cpus];
+	dispatches = new long[cpus];
+    }
+
+    private static Scheduler newScheduler() {
+	String schedulerName = Config.getString("SMPScheduler.scheduler");
+	if (schedulerName == null)
+	    schedulerName = "nachos.threads.RoundRobinScheduler";
+	return (Scheduler) Lib.constructObject(schedulerName);
+    }
+
+    /**
+     * Return the scheduler that orders each queue.
+     *
+     * @return	the underlying scheduler.
+     */
+    public Scheduler getScheduler() {
+	return scheduler;
+    }
+
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return scheduler.newThreadQueue(transferPriority);
+    }
+
+    /**
+     * Allocate the ready queue, which is made up of one run queue per CPU.
+     *
+     * @return	the ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new RunQueues();
+    }
+
+    public int getPriority(KThread thread) {
+	return scheduler.getPriority(thread);
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return scheduler.getEffectivePriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	scheduler.setPriority(thread, priority);
+    }
+
+    public boolean increasePriority() {
+	return scheduler.increasePriority();
+    }
+
+    public boolean decreasePriority() {
+	return scheduler.decreasePriority();
+    }
+
+    public void threadPreempted(KThread thread) {
+	scheduler.threadPreempted(thread);
+    }
+
+    public void threadDispatched(KThread thread) {
+	scheduler.threadDispatched(thread);
+    }
+
+    public void threadDescheduled(KThread thread) {
+	scheduler.threadDescheduled(thread);
+    }
+
+    /**
+     * Return the number of logical CPUs.
+     *
+     * @return	the number of logical CPUs.
+     */
+    public int getCpus() {
+	return cpus;
+    }
+
+    /**
+     * Return the logical CPU the current thread is running on.
+     *
+     * @return	the current CPU.
+     */
+    public int getCurrentCpu() {
+	return Math.max(KThread.currentThread().cpu, 0);
+    }
+
+    /**
+     * Return the number of ticks the specified CPU has spent running
+     * threads, as opposed to idling.
+     *
+     * @param	cpu	the CPU.
+     * @return	the CPU's busy ticks.
+     */
+    public long getBusyTicks(int cpu) {
+	return busyTicks[cpu];
+    }
+
+    /**
+     * Return the number of threads the specified CPU has dispatched.
+     *
+     * @param	cpu	the CPU.
+     * @return	the CPU's dispatches.
+     */
+    public long getDispatches(int cpu) {
+	return dispatches[cpu];
+    }
+
+    /**
+     * Return the number of threads stolen by idle CPUs.
+     *
+     * @return	the number of steals.
+     */
+    public long getSteals() {
+	return steals;
+    }
+
+    /**
+     * Test that each run queue is a ready queue of the underlying scheduler,
+     * by running a stride and an EDF scheduler on a single CPU. Threads
+     * that never run are dispatched straight from the ready queue, so the
+     * kernel's own scheduler is not involved.
+     */
+    public static void selfTest() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int savedDefault = PriorityScheduler.priorityDefault;
+	int savedMin = PriorityScheduler.priorityMin;
+	int savedMaximum = PriorityScheduler.priorityMaximum;
+
+	// every dispatch advances the pass, so a thread with three times the
+	// tickets runs three times as often
+	SMPScheduler smp = new SMPScheduler(new StrideScheduler(), 1);
+	ThreadQueue readyQueue = smp.newReadyQueue();
+	KThread[] thread = { new KThread(), new KThread() };
+	int[] turns = new int[thread.length];
+
+	smp.setPriority(thread[0], 1);
+	smp.setPriority(thread[1], 3);
+	for (int i=0; i<thread.length; i++)
+	    readyQueue.waitForAccess(thread[i]);
+
+	for (int i=0; i<400; i++) {
+	    KThread next = readyQueue.nextThread();
+	    turns[next == thread[0] ? 0 : 1]++;
+	    readyQueue.waitForAccess(next);
+	}
+	Lib.assertTrue(Math.abs(turns[1] - 3*turns[0]) <= 4);
+
+	PriorityScheduler.priorityDefault = savedDefault;
+	PriorityScheduler.priorityMin = savedMin;
+	PriorityScheduler.priorityMaximum = savedMaximum;
+
+	// a thread dispatched after its deadline has missed it
+	EDFScheduler edf = new EDFScheduler();
+	smp = new SMPScheduler(edf, 1);
+	readyQueue = smp.newReadyQueue();
+	KThread late = new KThread();
+
+	edf.setDeadline(late, Machine.timer().getTime() - 1);
+	readyQueue.waitForAccess(late);
+	Lib.assertTrue(readyQueue.nextThread() == late);
+	Lib.assertTrue(edf.getDeadlineMisses() == 1);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Print the busy ticks and dispatches of each CPU, the steals, and the
+     * speedup the workload would get if the CPUs really ran in parallel:
+     * the total busy ticks divided by those of the busiest CPU.
+     */
+    public void printStatistics() {
+	long total = 0, busiest = 1;
+	for (int cpu=0; cpu<cpus; cpu++) {
+	    System.out.println("CPU " + cpu + ": " + busyTicks[cpu]
+			       + " busy ticks, " + dispatches[cpu]
+			       + " dispatches");
+	    total += busyTicks[cpu];
+	    busiest = Math.max(busiest, busyTicks[cpu]);
+	}
+	System.out.println("Steals: " + steals + ", speedup: "
+			   + Math.round(total*100.0/busiest)/100.0);
+    }
+
+    private int cpus;
+    private Scheduler scheduler;
+
+    private long[] busyTicks;
+    private long[] dispatches;
+    private long steals = 0;
+
+    /**
+     * The ready queue: one queue of the underlying scheduler per CPU, and a
+     * count of the threads waiting on each.
+     */
+    protected class RunQueues extends ThreadQueue {
+	RunQueues() {
+	    runQueue = new ThreadQueue[cpus];
+	    count = new int[cpus];
+	    for (int cpu=0; cpu<cpus; cpu++)
+		runQueue[cpu] = scheduler.newReadyQueue();
+	}
+
+	/**
+	 * Add a thread to the run queue of the CPU it last ran on, or of the
+	 * least loaded CPU if it hasn't run yet.
+	 *
+	 * @param	thread	the thread that is ready to run.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (thread.cpu < 0) {
+		thread.cpu = 0;
+		for (int cpu=1; cpu<cpus; cpu++) {
+		    if (count[cpu] < count[thread.cpu])
+			thread.cpu = cpu;
+		}
+	    }
+
+	    runQueue[thread.cpu].waitForAccess(thread);
+	    count[thread.cpu]++;
+	}
+
+	/**
+	 * Let the next CPU in turn that has work dispatch a thread. A CPU
+	 * whose run queue is empty takes a turn only if it can steal from a
+	 * CPU with more than one thread waiting.
+	 *
+	 * @return	the thread to run, or <tt>null</tt> if no thread is
+	 *		ready.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    long now = Machine.timer().getTime();
+	    if (lastThread != null)
+		busyTicks[lastCpu] += now - lastDispatch;
+	    lastDispatch = now;
+
+	    int busiest = 0;
+	    for (int cpu=1; cpu<cpus; cpu++) {
+		if (count[cpu] > count[busiest])
+		    busiest = cpu;
+	    }
+
+	    lastThread = null;
+	    if (count[busiest] == 0)
+		return null;
+
+	    for (int i=1; i<=cpus; i++) {
+		int cpu = (lastCpu + i) % cpus;
+
+		int victim;
+		if (count[cpu] > 0)
+		    victim = cpu;
+		else if (count[busiest] > 1)
+		    victim = busiest;
+		else
+		    continue;
+
+		KThread thread = runQueue[victim].nextThread();
+		count[victim]--;
+		if (victim != cpu)
+		    steals++;
+
+		thread.cpu = cpu;
+		dispatches[cpu]++;
+		lastCpu = cpu;
+		lastThread = thread;
+		return thread;
+	    }
+
+	    Lib.assertNotReached();
+	    return null;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (thread.cpu < 0 || !runQueue[thread.cpu].remove(thread))
+		return false;
+
+	    count[thread.cpu]--;
+	    return true;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (thread.cpu < 0)
+		thread.cpu = 0;
+	    runQueue[thread.cpu].acquire(thread);
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int cpu=0; cpu<cpus; cpu++) {
+		System.out.print("[CPU " + cpu + ": ");
+		runQueue[cpu].print();
+		System.out.print("] ");
+	    }
+	}
+
+	private ThreadQueue[] runQueue;
+	private int[] count;
+
+	/** The CPU that dispatched most recently. */
+	private int lastCpu = 0;
+	/** The thread it dispatched, or <tt>null</tt> if it went idle. */
+	private KThread lastThread = null;
+	/** When it dispatched. */
+	private long lastDispatch = 0;
+    }
+}
@@ -52,6 +52,18 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the ready queue, from which <tt>KThread</tt> chooses the next
+     * thread to run. By default this is an ordinary queue that does not
+     * transfer priority, but a scheduler may organize the ready queue
+     * differently from the queues threads block on.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -154,4 +166,38 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Called by the alarm when the timer is about to preempt the specified
+     * thread, which is the current thread. Schedulers that treat threads
+     * differently depending on whether they use up their time slice can
+     * override this; the default does nothing. Interrupts must be disabled.
+     *
+     * @param	thread	the thread being preempted.
+     */
+    public void threadPreempted(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Called by <tt>KThread.restoreState()</tt> when the specified thread has
+     * been given the CPU. Schedulers that account for CPU time can override
+     * this; the default does nothing. Interrupts must be disabled.
+     *
+     * @param	thread	the thread that is now running.
+     */
+    public void threadDispatched(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Called by <tt>KThread.saveState()</tt> when the specified thread is
+     * about to give up the CPU, whether it is yielding, blocking or
+     * finishing. The default does nothing. Interrupts must be disabled.
+     *
+     * @param	thread	the thread that is giving up the CPU.
+     */
+    public void threadDescheduled(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
 }
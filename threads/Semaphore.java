@@ -14,6 +14,10 @@ import nachos.machine.*;
  * </ul>
  *
  * <p>
+ * <tt>P(n)</tt> and <tt>V(n)</tt> take and add several permits in one
+ * atomic step, and <tt>V(n)</tt> wakes every waiting thread it can satisfy.
+ *
+ * <p>
  * Note that this API does not allow a thread to read the value of the
  * semaphore directly. Even if you did read the value, the only thing you would
  * know is what the value used to be. You don't know what the value is now,
@@ -35,17 +39,91 @@ public class Semaphore {
      * Atomically wait for this semaphore to become non-zero and decrement it.
      */
     public void P() {
+	P(1);
+    }
+
+    /**
+     * Atomically wait for the value of this semaphore to reach <i>n</i> and
+     * subtract <i>n</i> from it. Waiting threads are served strictly in the
+     * order the scheduler's queue chooses them, so a thread that wants many
+     * permits is not overtaken by later threads that want fewer.
+     *
+     * @param	n	the number of permits to take.
+     */
+    public void P(int n) {
+	Lib.assertTrue(n >= 0);
+
 	boolean intStatus = Machine.interrupt().disable();
 
-	if (value == 0) {
-	    waitQueue.waitForAccess(KThread.currentThread());
+	if (!take(n)) {
+	    KThread thread = KThread.currentThread();
+	    thread.permitsWanted = n;
+	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
 	}
-	else {
-	    value--;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically subtract <i>n</i> from the value of this semaphore if it can
+     * be done without waiting. It can't while other threads are waiting,
+     * even if the value is large enough, since they are ahead in line.
+     *
+     * @param	n	the number of permits to take.
+     * @return	<tt>true</tt> if the permits were taken.
+     */
+    public boolean tryP(int n) {
+	return tryP(n, 0);
+    }
+
+    /**
+     * Atomically wait at most <i>ticks</i> clock ticks for the value of this
+     * semaphore to reach <i>n</i>, and subtract <i>n</i> from it if it does.
+     * If <i>ticks</i> is not positive, don't wait at all.
+     *
+     * @param	n	the number of permits to take.
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the permits were taken, <tt>false</tt> if
+     *		the time ran out.
+     */
+    public boolean tryP(int n, long ticks) {
+	Lib.assertTrue(n >= 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean taken = take(n);
+	if (!taken && ticks > 0) {
+	    KThread thread = KThread.currentThread();
+	    thread.permitsWanted = n;
+	    waitQueue.waitForAccess(thread);
+	    taken = ThreadedKernel.alarm.waitUntil(ticks, waitQueue);
+
+	    // if this thread was first in line, the next one may now fit
+	    if (!taken)
+		grant();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return taken;
+    }
+
+    /**
+     * Atomically take every permit that is available without waiting.
+     *
+     * @return	the number of permits taken.
+     */
+    public int drain() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int drained = 0;
+	if (waitQueue.isEmpty()) {
+	    drained = value;
+	    value = 0;
 	}
 
 	Machine.interrupt().restore(intStatus);
+	return drained;
     }
 
     /**
@@ -53,17 +131,120 @@ public class Semaphore {
      * sleeping on this semaphore.
      */
     public void V() {
+	V(1);
+    }
+
+    /**
+     * Atomically add <i>n</i> to the value of this semaphore, and wake up as
+     * many sleeping threads as the new value can satisfy, in order. They are
+     * all woken with interrupts disabled once.
+     *
+     * @param	n	the number of permits to add.
+     */
+    public void V(int n) {
+	Lib.assertTrue(n >= 0);
+
 	boolean intStatus = Machine.interrupt().disable();
 
-	KThread thread = waitQueue.nextThread();
-	if (thread != null) {
+	value += n;
+	grant();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Take <i>n</i> permits if nobody is waiting and there are enough.
+     */
+    private boolean take(int n) {
+	if (n == 0)
+	    return true;
+	if (!waitQueue.isEmpty() || value < n)
+	    return false;
+
+	value -= n;
+	return true;
+    }
+
+    /**
+     * Give permits to waiting threads, in order, until the next one wants
+     * more than are left. A waiter is only taken out of the scheduler's
+     * queue while there is a permit to give, so a thread that wants one
+     * permit is chosen when it can be served, and a thread that blocks
+     * later with a higher priority is still chosen ahead of it. Only a
+     * waiter that wants more permits than are left is held first in line.
+     */
+    private void grant() {
+	KThread thread;
+	while (value > 0 && (thread = waitQueue.peek()) != null &&
+	       thread.permitsWanted <= value) {
+	    value -= thread.permitsWanted;
+	    thread.permitsWanted = 0;
+	    waitQueue.nextThread();
 	    thread.ready();
 	}
-	else {
-	    value++;
+    }
+
+    /**
+     * A scheduler queue that can show the thread it will choose next without
+     * removing it. Since a <tt>ThreadQueue</tt> can't peek, the chosen thread
+     * is taken out and kept first in line until it is removed. Timed waits
+     * remove threads through this queue, which handles either case.
+     */
+    private class PermitQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    queue.waitForAccess(thread);
+	    waiting++;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> will return, or
+	 * <tt>null</tt> if nobody is waiting.
+	 */
+	KThread peek() {
+	    if (first == null)
+		first = queue.nextThread();
+	    return first;
 	}
-	
-	Machine.interrupt().restore(intStatus);
+
+	public KThread nextThread() {
+	    KThread thread = peek();
+	    if (thread != null) {
+		first = null;
+		waiting--;
+	    }
+	    return thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    if (thread == first)
+		first = null;
+	    else if (!queue.remove(thread))
+		return false;
+
+	    waiting--;
+	    return true;
+	}
+
+	public void acquire(KThread thread) {
+	    queue.acquire(thread);
+	}
+
+	public void print() {
+	    if (first != null)
+		System.out.print(first + " ");
+	    queue.print();
+	}
+
+	boolean isEmpty() {
+	    return waiting == 0;
+	}
+
+	private ThreadQueue queue =
+	    ThreadedKernel.scheduler.newThreadQueue(false);
+	/** The thread chosen to be next, or <tt>null</tt>. */
+	private KThread first = null;
+	/** The number of threads waiting, including <tt>first</tt>. */
+	private int waiting = 0;
     }
 
     private static class PingTest implements Runnable {
@@ -99,6 +280,5 @@ public class Semaphore {
     }
 
     private int value;
-    private ThreadQueue waitQueue =
-	ThreadedKernel.scheduler.newThreadQueue(false);
+    private PermitQueue waitQueue = new PermitQueue();
 }
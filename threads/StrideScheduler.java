@@ -0,0 +1,291 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that divides access in proportion to tickets, deterministically.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, and tickets are transferred through locks and joins by
+ * adding them to the owner's. Instead of holding a lottery, though, every
+ * thread has a <i>pass</i> value, and the thread with the smallest pass is
+ * always chosen. Each time a thread is chosen to run its pass advances by its
+ * <i>stride</i>, which is inversely proportional to its tickets, so a thread
+ * with twice as many tickets is chosen twice as often. Other queues, such as
+ * those of locks and joins, also choose the thread with the smallest pass,
+ * but leave it unchanged.
+ *
+ * <p>
+ * Because nothing is left to chance, the difference between the number of
+ * times a thread has been chosen and its proportional share is bounded by a
+ * constant at every point in time, rather than growing with the square root
+ * of the number of decisions as it does for a lottery.
+ */
+public class StrideScheduler extends LotteryScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority, false);
+    }
+
+    /**
+     * Allocate the ready queue, which is the only queue that advances the
+     * pass of the threads it chooses.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new StrideQueue(false, true);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new StrideThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Compare the throughput and fairness of this scheduler against the
+     * lottery scheduler. Each run repeatedly takes the next thread from a
+     * queue and puts it back, as the ready queue does at every context
+     * switch. Fairness is the largest amount by which any thread's number
+     * of turns strayed from its share at any point during the run.
+     */
+    public static void benchmark() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int savedDefault = priorityDefault;
+	int savedMin = priorityMin;
+	int savedMaximum = priorityMaximum;
+
+	Scheduler[] schedulers = { new LotteryScheduler(),
+				   new StrideScheduler() };
+	for (int i=0; i<schedulers.length; i++) {
+	    benchmark(schedulers[i], 10, 1000000);
+	    benchmark(schedulers[i], 1000, 1000000);
+	}
+
+	priorityDefault = savedDefault;
+	priorityMin = savedMin;
+	priorityMaximum = savedMaximum;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static void benchmark(Scheduler scheduler, int threads,
+				  int decisions) {
+	ThreadQueue queue = scheduler.newReadyQueue();
+	KThread[] thread = new KThread[threads];
+	long[] turns = new long[threads];
+	long totalTickets = 0;
+
+	for (int i=0; i<threads; i++) {
+	    thread[i] = new KThread();
+	    thread[i].schedulingState = null;
+	    scheduler.setPriority(thread[i], i+1);
+	    totalTickets += i+1;
+	    queue.waitForAccess(thread[i]);
+	}
+
+	// with few threads, record every choice to track the error over time
+	int[] chosen = (threads <= 10) ? new int[decisions] : null;
+
+	long start = System.nanoTime();
+	for (int d=0; d<decisions; d++) {
+	    KThread next = queue.nextThread();
+	    int i = scheduler.getPriority(next) - 1;
+	    if (chosen != null)
+		chosen[d] = i;
+	    else
+		turns[i]++;
+	    queue.waitForAccess(next);
+	}
+	long elapsed = Math.max(1, System.nanoTime() - start);
+
+	double worstError = 0;
+	if (chosen != null) {
+	    for (int d=0; d<decisions; d++) {
+		turns[chosen[d]]++;
+		for (int j=0; j<threads; j++) {
+		    double error = Math.abs(turns[j] -
+					    (double) (d+1)*(j+1)/totalTickets);
+		    worstError = Math.max(worstError, error);
+		}
+	    }
+	}
+	else {
+	    for (int j=0; j<threads; j++) {
+		double error = Math.abs(turns[j] -
+					(double) decisions*(j+1)/totalTickets);
+		worstError = Math.max(worstError, error);
+	    }
+	}
+
+	while (queue.nextThread() != null)
+	    ;
+	for (int i=0; i<threads; i++)
+	    thread[i].schedulingState = null;
+
+	System.out.println(scheduler.getClass().getName() + ": " + threads
+			   + " threads, "
+			   + (decisions * 1000000000L / elapsed)
+			   + " decisions/s, worst share error "
+			   + Math.round(worstError*100)/100.0 + " turns"
+			   + (threads > 10 ? " (at end)" : ""));
+    }
+
+    /**
+     * The pass increment of a thread holding a single ticket. Strides are
+     * this value divided by the thread's effective tickets, so it is large
+     * enough to keep strides distinct for ticket counts up to
+     * <tt>Integer.MAX_VALUE</tt>.
+     */
+    private static final long stride1 = 1L << 40;
+
+    /**
+     * A <tt>ThreadQueue</tt> that always chooses the waiter with the
+     * smallest pass, breaking ties by arrival. Waiters are kept in a binary
+     * heap with handles, and the total of their tickets is kept alongside
+     * so that it can be donated without a scan.
+     *
+     * <p>
+     * Only the ready queue advances the pass of the thread it chooses; any
+     * other queue choosing a thread, such as a lock being handed over, is
+     * not a turn on the CPU. The ready queue also tracks the pass of the
+     * last thread it chose. A thread that arrives with a smaller pass,
+     * because it has been waiting elsewhere or asleep, is moved up to that
+     * value, so it can't build up credit while absent and then monopolize
+     * the CPU.
+     */
+    protected class StrideQueue extends PriorityQueue {
+	StrideQueue(boolean transferPriority, boolean readyQueue) {
+	    super(transferPriority);
+	    this.readyQueue = readyQueue;
+	}
+
+	public KThread nextThread() {
+	    KThread thread = super.nextThread();
+	    if (thread != null && readyQueue) {
+		StrideThreadState state =
+		    (StrideThreadState) getThreadState(thread);
+		virtualTime = state.pass;
+		state.pass += stride1 / state.effective;
+	    }
+
+	    return thread;
+	}
+
+	protected ThreadState pickNextThread() {
+	    return (ThreadState) heap.peek();
+	}
+
+	/**
+	 * Return the total effective tickets of the waiting threads, or 0 if
+	 * this queue does not transfer tickets.
+	 *
+	 * @return	the tickets this queue donates to its owner.
+	 */
+	public long getDonation() {
+	    if (!transferPriority || heap.size == 0)
+		return noDonation();
+
+	    return totalTickets;
+	}
+
+	protected long noDonation() {
+	    return 0;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<heap.size; i++)
+		System.out.print(heap.heap[i].thread + " ");
+	}
+
+	void enqueue(DonationState state) {
+	    StrideThreadState strideState = (StrideThreadState) state;
+	    if (readyQueue && strideState.pass - virtualTime < 0)
+		strideState.pass = virtualTime;
+
+	    heap.add(state);
+	    totalTickets += state.effective;
+	}
+
+	void dequeue(DonationState state) {
+	    heap.remove(state);
+	    totalTickets -= state.effective;
+	}
+
+	/**
+	 * A change in tickets only changes future strides, so the waiter stays
+	 * where it is and only the total is adjusted.
+	 */
+	void requeue(DonationState state, long oldEffective) {
+	    if (state.heapIndex < 0)
+		return;
+
+	    totalTickets += state.effective - oldEffective;
+	}
+
+	/** <tt>true</tt> if this is the ready queue. */
+	private boolean readyQueue;
+
+	/**
+	 * The waiters, smallest pass first and ties broken by arrival. Passes
+	 * are compared by their difference so that they may wrap around.
+	 */
+	private WaiterHeap heap = new WaiterHeap() {
+		protected boolean before(DonationState a, DonationState b) {
+		    long passA = ((StrideThreadState) a).pass;
+		    long passB = ((StrideThreadState) b).pass;
+		    if (passA != passB)
+			return passA - passB < 0;
+		    return a.arrival - b.arrival < 0;
+		}
+	    };
+	private long totalTickets = 0;
+	/** The pass of the thread this queue chose most recently. */
+	private long virtualTime = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in a stride scheduler. Tickets are
+     * counted and donated exactly as in a lottery scheduler; the only
+     * addition is the thread's pass.
+     */
+    protected class StrideThreadState extends LotteryThreadState {
+	/**
+	 * Allocate a new <tt>StrideThreadState</tt> object and associate it
+	 * with the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public StrideThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	/** The virtual time at which this thread is next due to be chosen. */
+	protected long pass = 0;
+    }
+}
@@ -50,6 +50,31 @@ public class SynchList {
 	return o;
     }
 
+    /**
+     * Remove an object from the front of the queue, waiting at most
+     * <i>ticks</i> clock ticks for the queue to become non-empty.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the time ran out.
+     */
+    public Object removeFirst(long ticks) {
+	Object o = null;
+	long deadline = Machine.timer().getTime() + ticks;
+
+	lock.acquire();
+	while (list.isEmpty()) {
+	    long remaining = deadline - Machine.timer().getTime();
+	    if (remaining <= 0 || !listEmpty.sleepFor(remaining))
+		break;
+	}
+	if (!list.isEmpty())
+	    o = list.removeFirst();
+	lock.release();
+
+	return o;
+    }
+
     private static class PingTest implements Runnable {
 	PingTest(SynchList ping, SynchList pong) {
 	    this.ping = ping;
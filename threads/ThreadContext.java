@@ -0,0 +1,270 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The execution context that a <tt>KThread</tt> runs on. Exactly one context
+ * runs at a time; <tt>contextSwitch()</tt> hands the processor from the
+ * current context to another one and blocks until it is handed back.
+ *
+ * <p>
+ * There are two backends, selected by the
+ * <tt>ThreadedKernel.threadBackend</tt> key:
+ *
+ * <ul>
+ * <li><tt>tcb</tt>, the default, gives every <tt>KThread</tt> a
+ * <tt>TCB</tt>, which is backed by a platform thread. The machine limits the
+ * number of <tt>TCB</tt>s, and a switch costs two operating-system context
+ * switches.
+ * <li><tt>virtual</tt> runs every <tt>KThread</tt> on a JDK virtual thread
+ * instead. Blocked contexts are parked continuations rather than operating
+ * system threads, so there can be far more of them and a switch is much
+ * cheaper. On a JDK without virtual threads this backend falls back to
+ * platform threads, with the same semantics.
+ * </ul>
+ *
+ * <p>
+ * The <tt>virtual</tt> backend creates its threads itself rather than
+ * through the machine, so the autograder and the machine's privilege checks
+ * don't see them. It is intended for kernels that only run kernel threads.
+ */
+public abstract class ThreadContext {
+    /**
+     * Allocate a context for a new thread, which will run once it is
+     * started and switched to.
+     *
+     * @return	a new context.
+     */
+    static ThreadContext newContext() {
+	if (useVirtual())
+	    return new VirtualContext(null);
+	else
+	    return new TCBContext(new TCB());
+    }
+
+    /**
+     * Return the context of the code that is running right now, which
+     * becomes the context of the first <tt>KThread</tt>.
+     *
+     * @return	the current context.
+     */
+    static ThreadContext currentContext() {
+	if (useVirtual()) {
+	    if (VirtualContext.current == null)
+		VirtualContext.current = new VirtualContext(Thread.currentThread());
+	    return VirtualContext.current;
+	}
+	else {
+	    return new TCBContext(TCB.currentTCB());
+	}
+    }
+
+    /**
+     * Return the name of the backend in use. If the <tt>virtual</tt> backend
+     * is selected on a JDK without virtual threads, the name says that its
+     * contexts run on platform threads instead.
+     *
+     * @return	<tt>"tcb"</tt>, <tt>"virtual"</tt> or <tt>"virtual (platform
+     *		thread fallback)"</tt>.
+     */
+    public static String getBackend() {
+	if (!useVirtual())
+	    return "tcb";
+	else if (VirtualContext.hasVirtualThreads())
+	    return "virtual";
+	else
+	    return "virtual (platform thread fallback)";
+    }
+
+    private static boolean useVirtual() {
+	if (backend == null) {
+	    backend = Config.getString("ThreadedKernel.threadBackend");
+	    if (backend == null)
+		backend = "tcb";
+	    Lib.assertTrue(backend.equals("tcb") || backend.equals("virtual"));
+	}
+
+	return backend.equals("virtual");
+    }
+
+    private static String backend = null;
+
+    /**
+     * Prepare this context to run <i>target</i> when it is first switched
+     * to.
+     *
+     * @param	target	the code to run.
+     */
+    public abstract void start(Runnable target);
+
+    /**
+     * Stop running the current context and run this one instead. Returns
+     * when the current context is switched back to.
+     */
+    public abstract void contextSwitch();
+
+    /**
+     * Release the resources of this context, which belongs to a finished
+     * thread and must not be the current context.
+     */
+    public abstract void destroy();
+
+    /**
+     * Return <tt>true</tt> if this is the context that is running.
+     *
+     * @return	<tt>true</tt> if this is the current context.
+     */
+    public abstract boolean isCurrent();
+
+    /**
+     * A context backed by a <tt>TCB</tt>.
+     */
+    private static class TCBContext extends ThreadContext {
+	TCBContext(TCB tcb) {
+	    this.tcb = tcb;
+	}
+
+	public void start(Runnable target) {
+	    tcb.start(target);
+	}
+
+	public void contextSwitch() {
+	    tcb.contextSwitch();
+	}
+
+	public void destroy() {
+	    tcb.destroy();
+	}
+
+	public boolean isCurrent() {
+	    return tcb == TCB.currentTCB();
+	}
+
+	private TCB tcb;
+    }
+
+    /**
+     * A context backed by a virtual thread. The context that is running
+     * hands over by setting the next context's <tt>turn</tt> flag and
+     * unparking its thread, then parks until its own flag is set.
+     */
+    private static class VirtualContext extends ThreadContext {
+	VirtualContext(Thread javaThread) {
+	    this.javaThread = javaThread;
+	}
+
+	public void start(final Runnable target) {
+	    javaThread = newThread(new Runnable() {
+		    public void run() {
+			try {
+			    waitForTurn();
+			    target.run();
+			}
+			catch (Destroyed e) {
+			}
+			catch (Throwable e) {
+			    // this thread has the turn and nobody else will run,
+			    // so stop the machine as a TCB would
+			    Machine.terminate(e);
+			}
+		    }
+		});
+	    javaThread.start();
+	}
+
+	public void contextSwitch() {
+	    VirtualContext previous = current;
+	    if (previous == this)
+		return;
+
+	    current = this;
+	    turn = true;
+	    LockSupport.unpark(javaThread);
+
+	    previous.waitForTurn();
+	}
+
+	public void destroy() {
+	    Lib.assertTrue(current != this);
+
+	    destroyed = true;
+	    turn = true;
+	    LockSupport.unpark(javaThread);
+	}
+
+	public boolean isCurrent() {
+	    return current == this;
+	}
+
+	/**
+	 * Park until this context is switched to. If it has been destroyed
+	 * instead, unwind its thread.
+	 */
+	private void waitForTurn() {
+	    while (!turn)
+		LockSupport.park(this);
+	    turn = false;
+
+	    if (destroyed)
+		throw new Destroyed();
+	}
+
+	/**
+	 * Create an unstarted virtual thread running <i>target</i>, or a
+	 * daemon platform thread if this JDK has no virtual threads. The
+	 * virtual thread API is reached by reflection so that the kernel
+	 * still compiles on older JDKs.
+	 */
+	private static Thread newThread(Runnable target) {
+	    if (hasVirtualThreads()) {
+		try {
+		    return (Thread) unstarted.invoke(builder, target);
+		}
+		catch (Exception e) {
+		    Lib.assertNotReached(e.toString());
+		}
+	    }
+
+	    Thread thread = new Thread(target);
+	    thread.setDaemon(true);
+	    return thread;
+	}
+
+	/**
+	 * Return <tt>true</tt> if this JDK has virtual threads, looking the
+	 * API up the first time.
+	 */
+	static boolean hasVirtualThreads() {
+	    if (builder == null && unstarted == null) {
+		try {
+		    builder = Thread.class.getMethod("ofVirtual").invoke(null);
+		    unstarted = Class.forName("java.lang.Thread$Builder")
+			.getMethod("unstarted", Runnable.class);
+		}
+		catch (Exception e) {
+		    builder = Boolean.FALSE;
+		}
+	    }
+
+	    return unstarted != null;
+	}
+
+	/** Thrown to unwind the thread of a destroyed context. */
+	private static class Destroyed extends Error {
+	    private static final long serialVersionUID = 1L;
+	}
+
+	/** The context that is running. */
+	static VirtualContext current = null;
+
+	private static Object builder = null;
+	private static Method unstarted = null;
+
+	private Thread javaThread;
+	private volatile boolean turn = false;
+	private volatile boolean destroyed = false;
+    }
+}
@@ -91,6 +91,44 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Withdraw the specified thread from this queue, if it is waiting for
+     * access; for example, because it has given up waiting. Any priority the
+     * thread was donating through this queue is withdrawn as well.
+     *
+     * @param	thread	the thread that no longer wants access.
+     * @return	<tt>true</tt> if the thread was waiting on this queue.
+     */
+    public abstract boolean remove(KThread thread);
+
+    /**
+     * Notify this thread queue that the specified thread has received access
+     * together with any other threads that share it; for example, because it
+     * is one of several readers holding a reader-writer lock. If the queue
+     * transfers priority, waiting threads donate priority to every thread
+     * sharing access. A thread that had access to itself loses it, and
+     * <tt>acquire()</tt> or <tt>nextThread()</tt> ends all sharing.
+     *
+     * <p>
+     * The thread must not already share access. Schedulers that don't
+     * transfer priority need not keep track of sharing, so by default this
+     * method does nothing.
+     *
+     * @param	thread	the thread that now shares access.
+     */
+    public void acquireShared(KThread thread) {
+    }
+
+    /**
+     * Notify this thread queue that the specified thread, which shares
+     * access, has given it up. Any priority donated to it through this queue
+     * is withdrawn. By default this method does nothing.
+     *
+     * @param	thread	the thread that no longer shares access.
+     */
+    public void releaseShared(KThread thread) {
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
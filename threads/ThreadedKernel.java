@@ -41,17 +41,42 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-     * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * <tt>SynchList</tt>, <tt>Alarm</tt>, <tt>PriorityScheduler</tt>,
+     * <tt>EDFScheduler</tt>, <tt>SMPScheduler</tt>, <tt>ReadWriteLock</tt>,
+     * <tt>ReentrantLock</tt>, and <tt>ElevatorBank</tt> classes. Note that
+     * the autograder never calls this method, so it is safe to put
+     * additional tests here. If <tt>ThreadedKernel.benchmark</tt> is set,
+     * the benchmarks are run as well.
      */	
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	Alarm.selfTest();
+	PriorityScheduler.selfTest();
+	EDFScheduler.selfTest();
+	SMPScheduler.selfTest();
+	ReadWriteLock.selfTest();
+	ReentrantLock.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
+
+	if (Config.getBoolean("ThreadedKernel.benchmark", false))
+	    benchmark();
+    }
+
+    /**
+     * Run the scheduler and synchronization benchmarks.
+     */
+    public void benchmark() {
+	KThread.benchmark();
+	Alarm.benchmark();
+	Lock.benchmark();
+	Condition.benchmark();
+	Communicator.benchmark();
+	PriorityScheduler.benchmark();
+	StrideScheduler.benchmark();
     }
     
     /**
@@ -65,6 +90,9 @@ public class ThreadedKernel extends Kernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (scheduler instanceof SMPScheduler)
+	    ((SMPScheduler) scheduler).printStatistics();
+
 	Machine.halt();
     }
 
@@ -83,4 +111,12 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static StrideScheduler dummy8 = null;
+    private static EDFScheduler dummy9 = null;
+    private static MLFQScheduler dummy10 = null;
+    private static CFSScheduler dummy11 = null;
+    private static SMPScheduler dummy12 = null;
+    private static ThreadContext dummy13 = null;
+    private static ReadWriteLock dummy14 = null;
+    private static ReentrantLock dummy15 = null;
 }